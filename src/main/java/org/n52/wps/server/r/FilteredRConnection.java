@@ -32,7 +32,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
@@ -66,24 +66,17 @@ public class FilteredRConnection extends RConnection { // implements AutoCloseab
     /**
      * dangerous types of commands: system(), unlink(), setwd(), quit(), ...
      *
-     * "";quit("no"); does not start with quit, so check with contains.
+     * "";quit("no"); does not start with quit, so check with contains. One <code>contains</code> per command
+     * is faster than a single scan with a compiled pattern or a character loop, see
+     * <code>FilteredRConnectionFilterBenchmark</code>.
      */
-    private class BlacklistFilter implements RCommandFilter {
+    static class BlacklistFilter implements RCommandFilter {
 
-        private HashSet<String> illegalCommands = new HashSet<String>();
-
-        public BlacklistFilter() {
-            illegalCommands.add("eval");
-            illegalCommands.add("system");
-            illegalCommands.add("unlink");
-            illegalCommands.add("setwd");
-            illegalCommands.add("quit");
-            illegalCommands.add("q(");
-        }
+        private static final String[] ILLEGAL_COMMANDS = {"eval", "system", "unlink", "setwd", "quit", "q("};
 
         @Override
         public String filter(String command) throws OwsExceptionReport {
-            for (String illegal : this.illegalCommands) {
+            for (String illegal : ILLEGAL_COMMANDS) {
                 if (command.contains(illegal)){
                     //TODO: should we stil give the hint "Input is not allowed: " + command?
                     throw new NoApplicableCodeException();
@@ -97,38 +90,82 @@ public class FilteredRConnection extends RConnection { // implements AutoCloseab
 
     /**
      * replace potentially harmful commands like system, unlink, quit with different strings so that these
-     * functions cannot be called. It also escapes quotations marks.
+     * functions cannot be called. It also replaces single quotation marks with double quotation marks.
      *
      * In the case that somebody named variables in a script using the character sequences "eval", "quit" and
      * so forth, this should still work.
+     *
+     * The replacements are applied in a single pass over the command, trying the longest replaced sequence
+     * first at each position. This gives the same result as the former one <code>replaceAll</code> call per
+     * sequence: "q" was replaced before "quit" there, so "quit" ends up as "q_q_quit", and the replacement
+     * of '"' with '\"' did not change anything because the backslash escapes the quote in a replacement
+     * string.
      */
-    private class SilentReplacingFilter implements RCommandFilter {
+    static class SilentReplacingFilter implements RCommandFilter {
 
-        private Map<String, String> replacements = new HashMap<String, String>();
+        private static final Map<Character, List<Entry<String, String>>> REPLACEMENTS = compile();
 
-        public SilentReplacingFilter() {
+        private static Map<Character, List<Entry<String, String>>> compile() {
+            Map<String, String> replacements = new HashMap<String, String>();
             replacements.put("eval", "e_eval");
-            replacements.put("quit", "q_quit");
+            replacements.put("quit", "q_q_quit");
             replacements.put("q", "q_q");
             replacements.put("system", "s_system");
             replacements.put("setwd", "s_setwd");
             replacements.put("unlink", "u_unlink");
             replacements.put("'", "\"");
-            replacements.put("\"", "\\\"");
+
+            Map<Character, List<Entry<String, String>>> byFirstChar = new HashMap<>();
+            for (Entry<String, String> r : replacements.entrySet()) {
+                byFirstChar.computeIfAbsent(r.getKey().charAt(0), c -> new ArrayList<>()).add(r);
+            }
+            for (List<Entry<String, String>> candidates : byFirstChar.values()) {
+                candidates.sort((a, b) -> b.getKey().length() - a.getKey().length());
+            }
+            return byFirstChar;
         }
 
         @Override
         public String filter(String command) throws OwsExceptionReport {
-            String cmd = command;
-            for (Entry<String, String> r : this.replacements.entrySet()) {
-                cmd = cmd.replaceAll(r.getKey(), r.getValue());
+            StringBuilder cmd = null;
+            int copied = 0;
+            int i = 0;
+            while (i < command.length()) {
+                Entry<String, String> match = null;
+                List<Entry<String, String>> candidates = REPLACEMENTS.get(command.charAt(i));
+                if (candidates != null) {
+                    for (Entry<String, String> candidate : candidates) {
+                        if (command.startsWith(candidate.getKey(), i)) {
+                            match = candidate;
+                            break;
+                        }
+                    }
+                }
+
+                if (match == null) {
+                    i++;
+                    continue;
+                }
+
+                if (cmd == null) {
+                    cmd = new StringBuilder(command.length() + 16);
+                }
+                cmd.append(command, copied, i).append(match.getValue());
+                i += match.getKey().length();
+                copied = i;
             }
 
-            if (log.isDebugEnabled() && !cmd.equalsIgnoreCase(command)){
-                log.debug("Filter changed string from '{}' to '{}'.", command, cmd);
+            if (cmd == null) {
+                return command;
             }
 
-            return cmd;
+            cmd.append(command, copied, command.length());
+            String filtered = cmd.toString();
+            if (log.isDebugEnabled() && !filtered.equalsIgnoreCase(command)){
+                log.debug("Filter changed string from '{}' to '{}'.", command, filtered);
+            }
+
+            return filtered;
         }
 
     }
@@ -136,11 +173,11 @@ public class FilteredRConnection extends RConnection { // implements AutoCloseab
     /**
      * do not allow hex-encoded inputs or non-ascii characters
      */
-    private class HexEncodingFilter implements RCommandFilter {
+    private static class HexEncodingFilter implements RCommandFilter {
 
-        private Pattern nonAsciiPattern = Pattern.compile("[^\\p{ASCII}]+");
+        private static final Pattern nonAsciiPattern = Pattern.compile("[^\\p{ASCII}]+");
 
-        private Pattern hexPattern = Pattern.compile("0[xX][0-9a-f]+/i");
+        private static final Pattern hexPattern = Pattern.compile("0[xX][0-9a-f]+/i");
 
         @Override
         public String filter(String command) throws OwsExceptionReport {
@@ -172,8 +209,16 @@ public class FilteredRConnection extends RConnection { // implements AutoCloseab
 
     private boolean logAllEval = true;
 
+    private final String serverHost;
+
+    private final int serverPort;
+
+    private volatile int serverPid = -1;
+
     public FilteredRConnection(RCommandFilter filter, String host, int port) throws RserveException {
         super(host, port);
+        this.serverHost = host;
+        this.serverPort = port;
         this.filters.add(filter);
 
         configure();
@@ -185,10 +230,34 @@ public class FilteredRConnection extends RConnection { // implements AutoCloseab
 
     public FilteredRConnection(String host, int port) throws RserveException {
         super(host, port);
+        this.serverHost = host;
+        this.serverPort = port;
         this.filters.add(new SilentReplacingFilter());
         this.filters.add(new HexEncodingFilter());
     }
 
+    /**
+     * @return the host of the Rserve instance this connection was opened to
+     */
+    public String getServerHost() {
+        return serverHost;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * @return the process id of the R process serving this connection, or -1 if unknown
+     */
+    public int getServerPid() {
+        return serverPid;
+    }
+
+    public void setServerPid(int serverPid) {
+        this.serverPid = serverPid;
+    }
+
     @Override
     public boolean close() {
         if (super.isConnected()) {
@@ -30,14 +30,20 @@ package org.n52.wps.server.r;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.n52.javaps.algorithm.AbstractAlgorithm;
 import org.n52.javaps.algorithm.ExecutionException;
@@ -48,9 +54,12 @@ import org.n52.javaps.io.Data;
 import org.n52.shetland.ogc.ows.OwsCode;
 import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
+import org.n52.shetland.ogc.wps.JobId;
+import org.n52.wps.server.r.cache.RResultCacheKey;
 import org.n52.wps.server.r.data.RDataTypeRegistry;
 import org.n52.wps.server.r.data.R_Resource;
 import org.n52.wps.server.r.metadata.RAnnotationParser;
+import org.n52.wps.server.r.metadata.RParsedScript;
 import org.n52.wps.server.r.metadata.RProcessDescriptionCreator;
 import org.n52.wps.server.r.syntax.RAnnotation;
 import org.n52.wps.server.r.syntax.RAnnotationException;
@@ -69,14 +78,14 @@ import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
 
 public class GenericRProcess extends AbstractAlgorithm {
 
     private static final Logger log = LoggerFactory.getLogger(GenericRProcess.class);
 
-    private final List<String> errors = new ArrayList<>();
-
     private final RExecutor executor = new RExecutor();
 
     private final RIOHandler iohandler;
@@ -89,31 +98,110 @@ public class GenericRProcess extends AbstractAlgorithm {
 //    @Autowired
     private ScriptFileRepository scriptRepo;
 
-//    @Autowired
     private ResourceFileRepository resourceRepo;
 
-    private List<RAnnotation> annotations;
+    private volatile List<RAnnotation> annotations;
+
+    private volatile RParsedScript parsedScript;
+
+    /**
+     * the description is only created on first request, concurrent first callers wait for a single creation
+     */
+    private final Supplier<TypedProcessDescription> lazyDescription = Suppliers.memoize(this::initializeDescription);
 
     private final boolean shutdownRServerAfterRun = false;
 
+    /** milliseconds between checks whether the thread running an execution was interrupted */
+    private static final long INTERRUPT_CHECK_INTERVAL = 1000l;
+
     private final ResourceUrlGenerator urlGenerator;
 
-    private Thread updateThread;
+    private String wkn;
+
+    private final Map<JobId, RunningExecution> runningExecutions = new ConcurrentHashMap<>();
 
-    private boolean stopUpdateThread = false;
+    /** number of finished executions whose errors are kept */
+    private static final int MAX_FINISHED_ERRORS = 100;
 
-    private long lastStatusUpdate = 0;
+    /** the errors of the last failed executions, by job */
+    private final Map<JobId, List<String>> finishedErrors = Collections.synchronizedMap(new FinishedErrors());
 
-    private String wkn;
+    private static class FinishedErrors extends LinkedHashMap<JobId, List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<JobId, List<String>> eldest) {
+            return size() > MAX_FINISHED_ERRORS;
+        }
+
+    }
+
+    /**
+     * the state of one execution, so that a single process instance can run several executions concurrently,
+     * including what is needed to terminate it from another thread
+     */
+    static class RunningExecution {
+
+        private final FilteredRConnection connection;
+
+        private volatile RWorkspaceManager workspace;
+
+        private final AtomicBoolean terminated = new AtomicBoolean(false);
+
+        private volatile String reason;
+
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+
+        /** the last status the script of this execution reported */
+        private volatile String status;
+
+        private volatile Thread updateThread;
+
+        private volatile boolean stopUpdateThread = false;
+
+        /** only accessed by the update thread */
+        private long lastStatusUpdate = 0;
+
+        RunningExecution(FilteredRConnection connection) {
+            this.connection = connection;
+        }
+
+        void stopUpdateListener() {
+            this.stopUpdateThread = true;
+        }
+
+        String getStatus() {
+            return this.status;
+        }
+
+        boolean isTerminated() {
+            return this.terminated.get();
+        }
+
+        String getReason() {
+            return this.reason;
+        }
+
+        void addError(String error) {
+            this.errors.add(error);
+        }
+
+        List<String> getErrors() {
+            return Collections.unmodifiableList(new ArrayList<>(this.errors));
+        }
+
+    }
 
     private RProcessDescriptionCreator creator;
 
-    public GenericRProcess(String wellKnownName, R_Config config, RDataTypeRegistry dataTypeRegistry, ResourceUrlGenerator urlGenerator, ScriptFileRepository scriptRepo, RAnnotationParser parser, RProcessDescriptionCreator creator) {
+    public GenericRProcess(String wellKnownName, R_Config config, RDataTypeRegistry dataTypeRegistry, ResourceUrlGenerator urlGenerator, ScriptFileRepository scriptRepo, ResourceFileRepository resourceRepo, RAnnotationParser parser, RProcessDescriptionCreator creator) {
         this.wkn = wellKnownName;
         this.config = config;
         this.urlGenerator = urlGenerator;
-        iohandler = new RIOHandler(dataTypeRegistry);
+        iohandler = new RIOHandler(dataTypeRegistry, config.getFileTransfer(), config.getInputCache());
         this.scriptRepo = scriptRepo;
+        this.resourceRepo = resourceRepo;
         this.parser = parser;
         this.creator = creator;
         log.trace("NEW {}", this);
@@ -123,9 +211,27 @@ public class GenericRProcess extends AbstractAlgorithm {
         return annotations;
     }
 
+    /**
+     * @return always empty, because the same process instance runs several executions concurrently
+     * @deprecated the errors are kept per execution, use {@link #getErrors(JobId)}
+     */
+    @Deprecated
     @Override
     public List<String> getErrors() {
-        return this.errors;
+        return new ArrayList<>();
+    }
+
+    /**
+     * @return the errors of the running or one of the last finished executions of the job, empty if there were
+     *         none or the job is unknown
+     */
+    public List<String> getErrors(JobId jobId) {
+        RunningExecution execution = this.runningExecutions.get(jobId);
+        if (execution != null) {
+            return execution.getErrors();
+        }
+        List<String> errors = this.finishedErrors.get(jobId);
+        return errors == null ? Collections.<String>emptyList() : errors;
     }
 
 //    @Override
@@ -138,6 +244,21 @@ public class GenericRProcess extends AbstractAlgorithm {
 //        return iohandler.getOutputDataType(id, this.annotations);
 //    }
 
+    /**
+     * loads the annotations of the registered script without creating the process description
+     */
+    protected void initializeAnnotations() {
+        try {
+            this.parsedScript = this.parser.getParsedScript(scriptRepo.getScriptFile(wkn));
+            this.annotations = this.parsedScript.getAnnotations();
+        }
+        catch (RAnnotationException | IOException e) {
+            log.error("Error loading annotations for script '{}'", wkn, e);
+            throw new IllegalStateException("Error while parsing script file of script '" + wkn + "': "
+                    + e.getMessage(), e);
+        }
+    }
+
     protected TypedProcessDescription initializeDescription() {
         String wkn = getWellKnownName();
         log.debug("Load and validate script for wkn {}", wkn);
@@ -153,12 +274,14 @@ public class GenericRProcess extends AbstractAlgorithm {
         }
         log.debug("Loaded and valid: {}", scriptFile.getAbsolutePath());
 
-        try (InputStream rScriptStream = new FileInputStream(scriptFile);) {
+        try {
             log.info("Initializing description for {}", this.toString());
-            this.annotations = this.parser.parseAnnotationsfromScript(rScriptStream);
+            RParsedScript parsedScript = this.parser.getParsedScript(scriptFile);
+            this.parsedScript = parsedScript;
+            this.annotations = parsedScript.getAnnotations();
 
-            // submits annotation with process informations to ProcessdescriptionCreator:
-            TypedProcessDescription doc = creator.createDescribeProcessType(this.annotations, wkn);
+            // the description is created once for each script version, the validation only checks the annotations:
+            TypedProcessDescription doc = this.parser.getProcessDescription(parsedScript, wkn);
 
 //            if (log.isTraceEnabled()) {
 //                ProcessDescriptionsDocument outerDoc = ProcessDescriptionsDocument.Factory.newInstance();
@@ -179,6 +302,21 @@ public class GenericRProcess extends AbstractAlgorithm {
         }
     }
 
+    private RParsedScript getParsedScript() {
+        if (this.parsedScript == null) {
+            initializeAnnotations();
+        }
+        return this.parsedScript;
+    }
+
+    /**
+     * @return true if the script of this process did not change since the process was created
+     */
+    public boolean isScriptCurrent() {
+        RParsedScript script = this.parsedScript;
+        return script != null && this.parser.isCurrent(script);
+    }
+
     String getWellKnownName() {
         return wkn;
     }
@@ -200,15 +338,15 @@ public class GenericRProcess extends AbstractAlgorithm {
         return sb.toString();
     }
 
-    private void startUpdateListener(final File tmpStatusFile){
+    void startUpdateListener(final File tmpStatusFile, final RunningExecution execution, JobId jobId){
 
-        updateThread = new Thread("WPS4R-update-thread"){
+        execution.updateThread = new Thread("WPS4R-update-thread-" + jobId){
 
             @Override
             public void run() {
 
                 while(true){
-                    if(stopUpdateThread){
+                    if(execution.stopUpdateThread){
                         break;
                     }
 
@@ -224,12 +362,14 @@ public class GenericRProcess extends AbstractAlgorithm {
                     }
 
                     try {
-                        String updateMessage = readTmpStatusFile(tmpStatusFile);
+                        String updateMessage = readTmpStatusFile(tmpStatusFile, execution);
 
                         if(updateMessage == null || updateMessage.isEmpty()){
                             continue;
                         }
 
+                        execution.status = updateMessage.trim();
+
                         //try parsing status as integer and update process status if successful
                         try{
 
@@ -254,18 +394,18 @@ public class GenericRProcess extends AbstractAlgorithm {
 
         };
 
-        updateThread.start();
+        execution.updateThread.start();
     }
 
-    private String readTmpStatusFile(File tmpStatusFile) throws IOException{
+    String readTmpStatusFile(File tmpStatusFile, RunningExecution execution) throws IOException{
 
         String content = "";
 
         long statusFileModified = tmpStatusFile.lastModified();
 
-        log.debug("File modified: " + (statusFileModified > lastStatusUpdate));
+        log.debug("File modified: " + (statusFileModified > execution.lastStatusUpdate));
 
-        if(lastStatusUpdate == 0 || statusFileModified > lastStatusUpdate){
+        if(execution.lastStatusUpdate == 0 || statusFileModified > execution.lastStatusUpdate){
 
             BufferedReader bufferedReader = new BufferedReader(new FileReader(tmpStatusFile));
 
@@ -277,7 +417,7 @@ public class GenericRProcess extends AbstractAlgorithm {
 
             bufferedReader.close();
 
-            lastStatusUpdate = statusFileModified;
+            execution.lastStatusUpdate = statusFileModified;
         }
 
         return content;
@@ -287,48 +427,77 @@ public class GenericRProcess extends AbstractAlgorithm {
     public void execute(ProcessExecutionContext context) throws ExecutionException {
 
         ProcessInputs inputData = context.getInputs();
+        RParsedScript parsed = getParsedScript();
 
         log.info("Running {} \n\tInput data: {}", this.toString(), Arrays.toString(inputData.entrySet().toArray()));
 
+        JobId jobId = context.getJobId();
         FilteredRConnection rCon = null;
+        RunningExecution execution = null;
+        RSessionManager session = null;
+        RWorkspaceManager workspace = null;
+        String originalWorkDir = null;
+        boolean connectionBroken = false;
+        ScheduledFuture< ? > deadline = null;
+        ScheduledFuture< ? > interruptMonitor = null;
+        String resultCacheKey = null;
         try {
-            rCon = config.openRConnection();
+            if (isDeterministic()) {
+                resultCacheKey = createResultCacheKey(inputData);
+                Map<String, Data<?>> cached = resultCacheKey == null ? null
+                        : config.getResultCache().get(resultCacheKey);
+                if (cached != null) {
+                    log.info("Returning cached result {} for {}", resultCacheKey, getWellKnownName());
+                    // session info and warnings were not cached, they are replaced by a note about the cache
+                    cached = RSessionManager.saveCachedInfos(new HashMap<>(cached), resultCacheKey);
+                    for (String id : cached.keySet()) {
+                        context.getOutputs().put(new OwsCode(id), cached.get(id));
+                    }
+                    return;
+                }
+            }
+
+            rCon = config.borrowRConnection();
+            execution = startExecution(jobId, rCon);
+
+            // the engine cancels a job by interrupting its thread, which does not stop a blocking evaluation
+            final Thread executionThread = Thread.currentThread();
+            final RunningExecution monitoredExecution = execution;
+            interruptMonitor = config.scheduleMonitor(() -> {
+                if (executionThread.isInterrupted() && !monitoredExecution.terminated.get()) {
+                    cancel(jobId);
+                }
+            }, INTERRUPT_CHECK_INTERVAL);
+
+            long timeout = getExecutionTimeout();
+            if (timeout > 0) {
+                final RunningExecution timedExecution = execution;
+                deadline = config.scheduleWatchdog(() -> {
+                    log.warn("Execution {} of {} exceeded the timeout of {} seconds, terminating it",
+                             jobId,
+                             getWellKnownName(),
+                             timeout);
+                    terminate(timedExecution, "Execution of " + getWellKnownName() + " exceeded the time limit of "
+                            + timeout + " seconds and was aborted.");
+                }, TimeUnit.SECONDS.toMillis(timeout));
+            }
+
             RLogger.logGenericRProcess(rCon,
                                        "Running algorithm with input "
                                                + Arrays.deepToString(inputData.entrySet().toArray()));
 
-            RSessionManager session = new RSessionManager(rCon, config, this.urlGenerator);
+            session = new RSessionManager(rCon, config, this.urlGenerator);
             session.configureSession(getWellKnownName(), executor);
 
-            RWorkspaceManager workspace = new RWorkspaceManager(rCon, resourceRepo, iohandler, config);
-            String originalWorkDir = workspace.prepareWorkspace(inputData, getWellKnownName());
+            workspace = new RWorkspaceManager(rCon, resourceRepo, iohandler, config);
+            execution.workspace = workspace;
+            originalWorkDir = workspace.prepareWorkspace(inputData, getWellKnownName());
 
-            List<RAnnotation> resAnnotList = RAnnotation.filterAnnotations(this.annotations, RAnnotationType.RESOURCE);
-            workspace.loadResources(resAnnotList);
+            workspace.loadResources(parsed.getAnnotations(RAnnotationType.RESOURCE));
 
-            List<RAnnotation> inAnnotations = RAnnotation.filterAnnotations(this.annotations, RAnnotationType.INPUT);
-            workspace.loadInputValues(inputData, inAnnotations);
+            workspace.loadInputValues(inputData, parsed);
 
-            List<RAnnotation> importAnnotations = RAnnotation.filterAnnotations(this.annotations,
-                                                                                RAnnotationType.IMPORT);
-            List<File> imports = Lists.newArrayList();
-            for (RAnnotation rAnnotation : importAnnotations) {
-                @SuppressWarnings("unchecked")
-                List<R_Resource> importList = (List<R_Resource>) rAnnotation.getObjectValue(RAttribute.NAMED_LIST);
-                for (R_Resource importedScript : importList) {
-                    String value = importedScript.getResourceValue();
-                    try {
-                        File f = scriptRepo.getImportedFileForWKN(getWellKnownName(), value);
-                        imports.add(f);
-                        log.debug("Got imported file {} based on import resource {}", f, importList);
-                    }
-                    catch (InvalidRScriptException e) {
-                        log.error("Failed resolving imported script for '{}'", getWellKnownName(), e);
-//                        throw new ExceptionReport(e.getMessage(), ExceptionReport.NO_APPLICABLE_CODE);
-                        throw new NoApplicableCodeException();
-                    }
-                }
-            }
+            List<File> imports = getImports();
             session.loadImportedScripts(executor, imports);
 
             if (log.isDebugEnabled()){
@@ -370,7 +539,7 @@ public class GenericRProcess extends AbstractAlgorithm {
 
                         tmpStatusFile.createNewFile();
 
-                        startUpdateListener(tmpStatusFile);
+                        startUpdateListener(tmpStatusFile, execution, jobId);
 
                     } catch (REXPMismatchException e) {
                         log.debug("Could not parse String generated by R method tempfile() to Java File. No status updates are possible.", e);
@@ -385,9 +554,11 @@ public class GenericRProcess extends AbstractAlgorithm {
 
             HashMap<String, Data<?>> result = null;
             if (success) {
-                List<RAnnotation> outAnnotations = RAnnotation.filterAnnotations(this.annotations,
-                                                                                 RAnnotationType.OUTPUT);
-                result = workspace.saveOutputValues(outAnnotations);
+                result = workspace.saveOutputValues(parsed);
+                if (resultCacheKey != null) {
+                    // session info and warnings describe this execution, they are not cached
+                    config.getResultCache().put(resultCacheKey, result);
+                }
                 result = session.saveInfos(result);
             }
             else {
@@ -399,10 +570,6 @@ public class GenericRProcess extends AbstractAlgorithm {
 
             log.debug("RESULT: " + Arrays.toString(result.entrySet().toArray()));
 
-            session.cleanUp();
-            workspace.cleanUpInR(originalWorkDir);
-            workspace.cleanUpWithWPS();
-
             for (String id : result.keySet()) {
                  context.getOutputs().put(new OwsCode(id), result.get(id));
             }
@@ -410,20 +577,31 @@ public class GenericRProcess extends AbstractAlgorithm {
 //            return result;
         }
         catch (IOException | RuntimeException | OwsExceptionReport e) {
+            if (execution != null && execution.terminated.get()) {
+                connectionBroken = true;
+                throw createTerminationException(execution);
+            }
             String message = "Attempt to run R script file failed:\n" + e.getClass() + " - " + e.getLocalizedMessage()
                     + "\n" + e.getCause();
             log.error(message, e);
+            addError(jobId, execution, message);
 //            throw new ExceptionReport(message, e.getClass().getName(), e);
             throw new ExecutionException(e);
         }
         catch (RAnnotationException e) {
             String message = "R script cannot be executed due to invalid annotations.";
             log.error(message, e);
+            addError(jobId, execution, message + " " + e.getMessage());
 //            throw new ExceptionReport(message, e.getClass().getName(), e);
             throw new ExecutionException(e);
         }
         catch (RserveException e) {
+            connectionBroken = true;
+            if (execution != null && execution.terminated.get()) {
+                throw createTerminationException(execution);
+            }
             log.error("Rserve problem executing script: " + e.getMessage(), e);
+            addError(jobId, execution, "Rserve problem executing script: " + e.getMessage());
 //            throw new ExceptionReport("Rserve problem executing script: " + e.getMessage(),
 //                                      "R",
 //                                      ExceptionReport.REMOTE_COMPUTATION_ERROR,
@@ -434,10 +612,29 @@ public class GenericRProcess extends AbstractAlgorithm {
             String message = "An R Parsing Error occoured:\n" + e.getMessage() + " - " + e.getClass() + " - "
                     + e.getLocalizedMessage() + "\n" + e.getCause();
             log.error(message, e);
+            addError(jobId, execution, message);
 //            throw new ExceptionReport(message, "R", "R_Connection", e);
             throw new ExecutionException(e);
         }
         finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (interruptMonitor != null) {
+                interruptMonitor.cancel(false);
+            }
+            finishExecution(jobId, execution);
+            if (execution != null && execution.terminated.get()) {
+                // the R side was removed together with the R process
+                connectionBroken = true;
+            }
+            if ( !connectionBroken) {
+                connectionBroken = !cleanUpInR(session, workspace, originalWorkDir);
+            }
+            if (workspace != null) {
+                workspace.cleanUpWithWPS();
+            }
+
             if (rCon != null) {
                 if (shutdownRServerAfterRun) {
                     log.debug("Shutting down R completely...");
@@ -451,22 +648,192 @@ public class GenericRProcess extends AbstractAlgorithm {
 //                        throw new ExceptionReport(message, "R", "R_Connection", e);
                         throw new ExecutionException(e);
                     }
+                    finally {
+                        config.invalidateRConnection(rCon);
+                    }
+                }
+                else if (connectionBroken) {
+                    config.invalidateRConnection(rCon);
+                }
+                else {
+                    config.releaseRConnection(rCon);
+                }
+            }
+        }
+    }
+
+    /**
+     * registers the state of a new execution, so that it can be cancelled while it is running
+     */
+    RunningExecution startExecution(JobId jobId, FilteredRConnection connection) {
+        RunningExecution execution = new RunningExecution(connection);
+        this.runningExecutions.put(jobId, execution);
+        return execution;
+    }
+
+    void finishExecution(JobId jobId, RunningExecution execution) {
+        if (execution != null) {
+            execution.stopUpdateListener();
+            List<String> errors = execution.getErrors();
+            if ( !errors.isEmpty()) {
+                this.finishedErrors.put(jobId, errors);
+            }
+        }
+        this.runningExecutions.remove(jobId);
+    }
+
+    /**
+     * keeps the error with the execution, or with the job if the execution did not start
+     */
+    private void addError(JobId jobId, RunningExecution execution, String error) {
+        if (execution != null) {
+            execution.addError(error);
+        }
+        else {
+            this.finishedErrors.put(jobId, Collections.singletonList(error));
+        }
+    }
+
+    /**
+     * Resets the session and the R working directory after an execution, also after a failed one, so that the
+     * connection can go back to the pool.
+     *
+     * @return false if the R side could not be cleaned and the connection must not be reused
+     */
+    private boolean cleanUpInR(RSessionManager session, RWorkspaceManager workspace, String originalWorkDir) {
+        if (workspace != null && originalWorkDir == null) {
+            log.debug("Workspace of {} was not prepared completely, discarding the connection", getWellKnownName());
+            return false;
+        }
+        try {
+            if (session != null) {
+                session.cleanUp();
+            }
+            if (workspace != null) {
+                workspace.cleanUpInR(originalWorkDir);
+            }
+            return true;
+        }
+        catch (RuntimeException e) {
+            log.warn("Could not clean up R after execution of {}, discarding the connection", getWellKnownName(), e);
+            return false;
+        }
+    }
+
+    private List<File> getImports() throws RAnnotationException, OwsExceptionReport {
+        List<RAnnotation> importAnnotations = getParsedScript().getAnnotations(RAnnotationType.IMPORT);
+        List<File> imports = Lists.newArrayList();
+        for (RAnnotation rAnnotation : importAnnotations) {
+            @SuppressWarnings("unchecked")
+            List<R_Resource> importList = (List<R_Resource>) rAnnotation.getObjectValue(RAttribute.NAMED_LIST);
+            for (R_Resource importedScript : importList) {
+                String value = importedScript.getResourceValue();
+                try {
+                    File f = scriptRepo.getImportedFileForWKN(getWellKnownName(), value);
+                    imports.add(f);
+                    log.debug("Got imported file {} based on import resource {}", f, importList);
                 }
-                else{
-                    rCon.close();
+                catch (InvalidRScriptException e) {
+                    log.error("Failed resolving imported script for '{}'", getWellKnownName(), e);
+//                    throw new ExceptionReport(e.getMessage(), ExceptionReport.NO_APPLICABLE_CODE);
+                    throw new NoApplicableCodeException();
                 }
             }
+        }
+        return imports;
+    }
+
+    /**
+     * @return true if the process description annotation declares that results only depend on the script and
+     *         the inputs, so they may be cached
+     */
+    private boolean isDeterministic() throws RAnnotationException {
+        RAnnotation description = getParsedScript().getDescriptionAnnotation();
+        return description != null
+                && Boolean.parseBoolean(description.getStringValue(RAttribute.DETERMINISTIC).trim());
+    }
 
-            if(updateThread != null && updateThread.isAlive()){
-                stopUpdateThread = true;
+    /**
+     * @return the key of the result in the result cache, built from the script, its imports and resources and
+     *         the inputs, or <code>null</code> if a resource or the inputs cannot be part of a key
+     */
+    private String createResultCacheKey(ProcessInputs inputData) throws IOException,
+            RAnnotationException,
+            OwsExceptionReport {
+        RResultCacheKey key = new RResultCacheKey();
+        key.addFile(scriptRepo.getScriptFile(getWellKnownName()));
+        for (File file : getImports()) {
+            key.addFile(file);
+        }
+        for (RAnnotation resourceAnnotation : getParsedScript().getAnnotations(RAnnotationType.RESOURCE)) {
+            @SuppressWarnings("unchecked")
+            List<R_Resource> resources = (List<R_Resource>) resourceAnnotation.getObjectValue(RAttribute.NAMED_LIST);
+            for (R_Resource resource : resources) {
+                if ( !resourceRepo.isResourceAvailable(resource)) {
+                    log.debug("Resource {} of {} cannot be resolved, not caching", resource, getWellKnownName());
+                    return null;
+                }
+                key.addFile(resourceRepo.getResource(resource).toFile());
             }
         }
+
+        if ( !key.addInputs(inputData)) {
+            log.debug("Inputs of {} cannot be cached: {}", getWellKnownName(), inputData);
+            return null;
+        }
+        return key.build();
+    }
+
+    /**
+     * @return the maximum execution time in seconds from the process description annotation or the
+     *         configuration, 0 for no limit
+     */
+    private long getExecutionTimeout() throws RAnnotationException {
+        RAnnotation description = getParsedScript().getDescriptionAnnotation();
+        if (description != null && description.containsKey(RAttribute.TIMEOUT)) {
+            return Long.parseLong(description.getStringValue(RAttribute.TIMEOUT).trim());
+        }
+        return config.getExecutionTimeout();
+    }
+
+    /**
+     * Aborts a running execution of this process by killing its R process. The execution then fails, its
+     * workspace is deleted and the connection is discarded, which frees the capacity in the pool. This is
+     * called when the thread running the execution is interrupted.
+     *
+     * @return true if the execution was running and could be terminated
+     */
+    public boolean cancel(JobId jobId) {
+        RunningExecution execution = this.runningExecutions.get(jobId);
+        if (execution == null) {
+            log.debug("Execution {} of {} is not running, nothing to cancel", jobId, getWellKnownName());
+            return false;
+        }
+
+        log.info("Cancelling execution {} of {}", jobId, getWellKnownName());
+        return terminate(execution, "Execution of " + getWellKnownName() + " was cancelled.");
+    }
+
+    private boolean terminate(RunningExecution execution, String reason) {
+        if ( !execution.terminated.compareAndSet(false, true)) {
+            return false;
+        }
+        execution.reason = reason;
+        execution.addError(reason);
+
+        RWorkspaceManager workspace = execution.workspace;
+        String rWorkDirectory = workspace == null ? null : workspace.getRWorkDirectory();
+        return config.terminateRConnection(execution.connection, rWorkDirectory);
+    }
+
+    private ExecutionException createTerminationException(RunningExecution execution) {
+        log.error(execution.reason);
+        return new ExecutionException(new NoApplicableCodeException().withMessage(execution.reason));
     }
 
     @Override
     protected TypedProcessDescription createDescription() {
-
-        return initializeDescription();
+        return this.lazyDescription.get();
     }
 
 }
@@ -29,14 +29,26 @@
 package org.n52.wps.server.r;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
@@ -48,15 +60,18 @@ import org.n52.shetland.ogc.ows.OwsCode;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.wps.server.r.data.CustomDataTypeManager;
 import org.n52.wps.server.r.data.RDataTypeRegistry;
+import org.n52.wps.server.r.data.R_Resource;
 import org.n52.wps.server.r.info.RProcessInfo;
 import org.n52.wps.server.r.metadata.RAnnotationParser;
 import org.n52.wps.server.r.metadata.RProcessDescriptionCreator;
 import org.n52.wps.server.r.syntax.RAnnotation;
 import org.n52.wps.server.r.syntax.RAnnotationException;
 import org.n52.wps.server.r.syntax.RAnnotationType;
+import org.n52.wps.server.r.syntax.RAttribute;
 import org.n52.wps.server.r.util.InvalidRScriptException;
+import org.n52.wps.server.r.util.RFileExtensionFilter;
+import org.n52.wps.server.r.util.RScriptWatcher;
 import org.n52.wps.server.r.util.ResourceUrlGenerator;
-import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -84,9 +99,49 @@ public class RAlgorithmRepository implements AlgorithmRepository {
 
     private static final String DESCRPTION_VERSION_FOR_VALIDATION = "2.0.0";
 
-    private final Map<OwsCode, GenericRProcess> rProcesses = new HashMap<>();
+    /**
+     * An immutable snapshot of the registered processes and their information. It is replaced as a whole on
+     * every change, so lookups take no locks and always see a process together with its information.
+     */
+    private static final class Registry {
+
+        private static final Registry EMPTY = new Registry(Collections.emptyMap(), Collections.emptyMap());
+
+        private final Map<OwsCode, GenericRProcess> processes;
+
+        private final Map<String, RProcessInfo> processInfos;
+
+        private Registry(Map<OwsCode, GenericRProcess> processes, Map<String, RProcessInfo> processInfos) {
+            this.processes = Collections.unmodifiableMap(processes);
+            this.processInfos = Collections.unmodifiableMap(processInfos);
+        }
+
+        private Registry with(String processName, RProcessInfo processInfo, GenericRProcess process) {
+            Map<OwsCode, GenericRProcess> newProcesses = new HashMap<>(this.processes);
+            newProcesses.put(new OwsCode(processName), process);
+            Map<String, RProcessInfo> newProcessInfos = new HashMap<>(this.processInfos);
+            newProcessInfos.put(processName, processInfo);
+            return new Registry(newProcesses, newProcessInfos);
+        }
+
+        private Registry without(String processName) {
+            OwsCode id = new OwsCode(processName);
+            if ( !this.processes.containsKey(id) && !this.processInfos.containsKey(processName)) {
+                return this;
+            }
+            Map<OwsCode, GenericRProcess> newProcesses = new HashMap<>(this.processes);
+            newProcesses.remove(id);
+            Map<String, RProcessInfo> newProcessInfos = new HashMap<>(this.processInfos);
+            newProcessInfos.remove(processName);
+            return new Registry(newProcesses, newProcessInfos);
+        }
+
+    }
+
+    private volatile Registry registry = Registry.EMPTY;
 
-    private final Map<String, RProcessInfo> processInfos = new HashMap<>();
+    /** serializes the copy-on-write updates of the registry, readers do not lock */
+    private final Object registryLock = new Object();
 
     @Inject
     private R_Config config;
@@ -113,6 +168,8 @@ public class RAlgorithmRepository implements AlgorithmRepository {
     @Inject
     private ResourceUrlGenerator resourceUrlGenerator;
 
+    private RScriptWatcher scriptWatcher;
+
     public RAlgorithmRepository() {
         LOGGER.info("NEW {}", this);
     }
@@ -120,21 +177,254 @@ public class RAlgorithmRepository implements AlgorithmRepository {
     public void init() {
         LOGGER.info("Initializing Local*R*ConfigurationModule..");
 
-         // TODO tests expect a configuration manager injected here
+        // TODO tests expect a configuration manager injected here
 //        SpringIntegrationHelper.autowireBean(WPSConfig.getInstance());
 
-            if ( !isRServeAvailable()) {
-                LOGGER.error("RServe is not available, not adding ANY algorithms!");
-                return;
-            }
-            scriptRepo.registerScriptFiles(config.getScriptFiles());
+        if ( !isRServeAvailable()) {
+            LOGGER.error("RServe is not available, not adding ANY algorithms!");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Collection<File> scriptFiles = config.getScriptFiles();
+        ExecutorService startupExecutor = createStartupExecutor();
+        try {
+            registerScriptFiles(scriptFiles, startupExecutor);
             initializeResourceDirectoriesRepository();
+            intializeAvailableAlgorithms(scriptFiles, startupExecutor);
+            parser.pruneAnnotationCache();
+        } catch (Exception e) {
+            LOGGER.error("Could not initialize script repository", e);
+        } finally {
+            startupExecutor.shutdownNow();
+        }
+        LOGGER.info("Initialized *R*AlgorithmRepository with {} algorithms from {} script files in {}ms",
+                    registry.processes.size(),
+                    scriptFiles.size(),
+                    System.currentTimeMillis() - start);
+
+        if (config.isScriptWatcherEnabled()) {
+            startScriptWatcher();
+        }
+    }
+
+    private void startScriptWatcher() {
+        Set<Path> directories = new LinkedHashSet<>();
+        getScriptDirectories().stream().forEach(directories::add);
+        config.getResourceDirectories().stream().forEach(d -> directories.add(d.toAbsolutePath()));
+        try {
+            this.scriptWatcher = new RScriptWatcher(directories, this::applyChanges);
+            this.scriptWatcher.start();
+        }
+        catch (IOException e) {
+            LOGGER.error("Could not watch script directories {}, changed scripts require a restart", directories, e);
+        }
+    }
+
+    /**
+     * updates only the algorithms affected by the changed files, all other algorithms stay untouched
+     */
+    private synchronized void applyChanges(Set<Path> paths) {
+        Set<File> scripts = new LinkedHashSet<>();
+        Set<Path> otherFiles = new LinkedHashSet<>();
+        boolean rescan = false;
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                // events were lost, compare the directory with the registered scripts
+                rescan = true;
+                scripts.addAll(scriptRepo.getRegisteredScriptFiles().stream()
+                        .filter(f -> f.toPath().startsWith(path))
+                        .collect(Collectors.toList()));
+                File[] files = isInScriptDirectory(path) ? path.toFile().listFiles(new RFileExtensionFilter()) : null;
+                if (files != null) {
+                    for (File file : files) {
+                        scripts.add(file.getAbsoluteFile());
+                    }
+                }
+            } else if (canHandleItem(path.toFile()) && isInScriptDirectory(path)) {
+                scripts.add(path.toFile().getAbsoluteFile());
+            } else {
+                otherFiles.add(path);
+            }
+        }
+
+        for (File script : scripts) {
+            if ( !script.exists()) {
+                unloadScriptFile(script);
+            } else if (scriptRepo.isRegisteredScriptFile(script) && parser.isParsedScriptCurrent(script)) {
+                LOGGER.trace("Script file {} did not change", script);
+            } else {
+                reloadScriptFile(script);
+            }
+        }
+        if ( !scripts.isEmpty()) {
+            parser.pruneAnnotationCache();
+        }
+
+        if (rescan || !otherFiles.isEmpty()) {
+            Set<Path> fileNames = otherFiles.stream().map(Path::getFileName).collect(Collectors.toSet());
+            for (GenericRProcess process : registry.processes.values()) {
+                if (rescan || referencesAny(process, fileNames)) {
+                    addResourcesForGenericRProcess(process);
+                    addImportsForGenericRProcess(process);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the path is in one of the script directories, R files in resource directories are
+     *         resources or imports
+     */
+    private boolean isInScriptDirectory(Path path) {
+        Path absolute = path.toAbsolutePath();
+        return getScriptDirectories().stream().anyMatch(absolute::startsWith);
+    }
+
+    /**
+     * @return the absolute script directories, relative ones are resolved against the base directory like the
+     *         script files are, see {@link R_Config#getScriptFiles()}
+     */
+    private List<Path> getScriptDirectories() {
+        List<Path> directories = new ArrayList<>();
+        for (File dir : config.getScriptDirectories()) {
+            Path path = dir.isAbsolute() ? dir.toPath() : config.getBaseDir().resolve(dir.toPath());
+            directories.add(path.toAbsolutePath());
+        }
+        return directories;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean referencesAny(GenericRProcess process, Set<Path> fileNames) {
+        List<RAnnotation> references = new ArrayList<>(getResourceAnnotations(process));
+        references.addAll(getImportAnnotations(process));
+        for (RAnnotation annotation : references) {
             try {
-                intializeAvailableAlgorithms();
-            } catch (Exception e) {
-                LOGGER.error("Could not initialize script repository", e);
+                for (R_Resource resource : (Collection<R_Resource>) annotation.getObjectValue(RAttribute.NAMED_LIST)) {
+                    if (fileNames.contains(Paths.get(resource.getResourceValue()).getFileName())) {
+                        return true;
+                    }
+                }
+            }
+            catch (RAnnotationException | RuntimeException e) {
+                LOGGER.debug("Could not get resources from annotation {}", annotation, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a new or changed script file again and replaces the algorithm of its identifier. The previous
+     * algorithm is removed if the identifier of the script changed.
+     *
+     * @param file the script file
+     * @return <code>true</code> if the algorithm was added, <code>false</code> otherwise.
+     */
+    public synchronized boolean reloadScriptFile(File file) {
+        LOGGER.info("Reloading script file {}", file);
+        String previousWkn = scriptRepo.unregisterScriptFile(file);
+        String wkn = null;
+        try {
+            if (scriptRepo.registerScriptFile(file)) {
+                wkn = scriptRepo.getWKNForScriptFile(file.getAbsoluteFile());
+            }
+        }
+        catch (RAnnotationException | OwsExceptionReport e) {
+            LOGGER.error("Could not register changed script file {}", file, e);
+        }
+
+        if (previousWkn != null && !previousWkn.equals(wkn)) {
+            refreshAlgorithm(previousWkn);
+        }
+        return wkn != null && refreshAlgorithm(wkn);
+    }
+
+    /**
+     * Removes a deleted script file and replaces the algorithm of its identifier with a remaining version of
+     * the script, if any.
+     *
+     * @param file the script file
+     */
+    public synchronized void unloadScriptFile(File file) {
+        LOGGER.info("Unloading script file {}", file);
+        parser.removeParsedScript(file);
+        String wkn = scriptRepo.unregisterScriptFile(file);
+        if (wkn != null) {
+            refreshAlgorithm(wkn);
+        }
+    }
+
+    private boolean refreshAlgorithm(String wkn) {
+        if (scriptRepo.getScriptFileVersionsForWKN(wkn) == null) {
+            unregisterProcess(wkn);
+            LOGGER.info("Removed algorithm '{}' without script files", wkn);
+            return false;
+        }
+        return initializeRProcess(wkn);
+    }
+
+    ExecutorService createStartupExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.getStartupThreads(), r -> {
+            Thread t = new Thread(r, "WPS4R-startup-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * runs the tasks on the startup threads and returns the results of all tasks that completed normally
+     */
+    private <T> List<T> invokeAll(ExecutorService executor, Collection<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                }
+                catch (ExecutionException e) {
+                    LOGGER.error("Startup task failed", e.getCause());
+                }
             }
-            LOGGER.info("Initialized *R*AlgorithmRepository");
+        }
+        catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while initializing algorithms");
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * makes the scripts known by their identifiers, this is the part of the startup that does not need Rserve
+     */
+    void registerScriptFiles(Collection<File> scriptFiles, ExecutorService executor) {
+        parseScriptFiles(scriptFiles, executor);
+        scriptRepo.registerScriptFiles(scriptFiles);
+    }
+
+    /**
+     * parses the scripts concurrently, the following (serialized) registration then only hits the parser's
+     * cache. Errors are reported during registration.
+     */
+    private void parseScriptFiles(Collection<File> scriptFiles, ExecutorService executor) {
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (File file : scriptFiles) {
+            tasks.add(() -> {
+                try {
+                    parser.getParsedScript(file);
+                    return true;
+                }
+                catch (IOException | RAnnotationException e) {
+                    LOGGER.debug("Could not parse script file {}: {}", file, e.getMessage());
+                    return false;
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        List<Boolean> parsed = invokeAll(executor, tasks);
+        LOGGER.debug("Parsed {} of {} script files in {}ms",
+                     parsed.stream().filter(Boolean::booleanValue).count(),
+                     scriptFiles.size(),
+                     System.currentTimeMillis() - start);
     }
 
      /**
@@ -142,9 +432,9 @@ public class RAlgorithmRepository implements AlgorithmRepository {
       */
     private boolean isRServeAvailable() {
         LOGGER.debug("Trying to connect to Rserve to verify startup conditions.");
-        RConnection testcon = null;
+        FilteredRConnection testcon = null;
         try {
-            testcon = config.openRConnection();
+            testcon = config.borrowRConnection();
             LOGGER.info("WPS successfully connected to Rserve.");
         }
         catch (RserveException e) {
@@ -152,7 +442,7 @@ public class RAlgorithmRepository implements AlgorithmRepository {
             return false;
         } finally {
             if (testcon != null) {
-                testcon.close();
+                config.releaseRConnection(testcon);
             }
         }
         return true;
@@ -165,16 +455,26 @@ public class RAlgorithmRepository implements AlgorithmRepository {
         });
     }
 
-    private void intializeAvailableAlgorithms() throws RAnnotationException, OwsExceptionReport {
-
-        Collection<File> scriptFiles = config.getScriptFiles();
-
+    private void intializeAvailableAlgorithms(Collection<File> scriptFiles, ExecutorService executor) throws RAnnotationException,
+            OwsExceptionReport {
+        // several versions of a script share one algorithm
+        Set<String> wkns = new LinkedHashSet<>();
         for (File file : scriptFiles) {
             String wkn = scriptRepo.getWKNForScriptFile(file);
+            if (wkn == null) {
+                LOGGER.debug("Script file {} is not registered, not adding an algorithm", file);
+            } else {
+                wkns.add(wkn);
+            }
+        }
+
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (String wkn : wkns) {
             String publicId = config.getPublicScriptId(wkn);
             LOGGER.debug("Adding algorithm: {} with publicId: {}", wkn, publicId);
-            addAlgorithm(wkn);
+            tasks.add(() -> addAlgorithm(wkn));
         }
+        invokeAll(executor, tasks);
         //TODO check, do we need a means to enable only selected algorithms!?
 //        List<AlgorithmEntry> configuredAlgorithms = configModule.getAlgorithmEntries();
 //        LOGGER.debug("Adding algorithms: {}", configuredAlgorithms.stream()
@@ -235,11 +535,11 @@ public class RAlgorithmRepository implements AlgorithmRepository {
         try {
             LOGGER.debug("Initialize RProcess with name {}", processName);
             RProcessInfo processInfo = createRProcessInfo(processName);
-            processInfos.put(processName, processInfo);
-            LOGGER.trace("Added internal info: '{}'", processInfo);
-
             GenericRProcess p = createRProcess(processName);
-            rProcesses.put(new OwsCode(processName), p);
+
+            // the process is only replaced once it was created completely
+            registerProcess(processName, processInfo, p);
+            LOGGER.trace("Added internal info: '{}'", processInfo);
             LOGGER.info("ADDED algorithm as generic R process under name '{}': {}", processName, p);
 
             addResourcesForGenericRProcess(p);
@@ -248,12 +548,23 @@ public class RAlgorithmRepository implements AlgorithmRepository {
         }
         catch (RuntimeException | InvalidRScriptException e) {
             LOGGER.error("Could not load algorithm '{}'", processName, e);
-            processInfos.remove(processName);
-            rProcesses.remove(processName);
+            unregisterProcess(processName);
             return false;
         }
     }
 
+    private void registerProcess(String processName, RProcessInfo processInfo, GenericRProcess process) {
+        synchronized (registryLock) {
+            this.registry = this.registry.with(processName, processInfo, process);
+        }
+    }
+
+    private void unregisterProcess(String processName) {
+        synchronized (registryLock) {
+            this.registry = this.registry.without(processName);
+        }
+    }
+
     private RProcessInfo createRProcessInfo(String wellKnownName) throws InvalidRScriptException {
         LOGGER.trace("Loading script for '{}'", wellKnownName);
         File f = scriptRepo.getValidatedScriptFile(wellKnownName);
@@ -262,13 +573,14 @@ public class RAlgorithmRepository implements AlgorithmRepository {
 
     private GenericRProcess createRProcess(String wellKnownName) {
         LOGGER.debug("Loading algorithm '{}'", wellKnownName);
-        GenericRProcess algorithm = new GenericRProcess(wellKnownName, config, dataTypeRegistry, resourceUrlGenerator, scriptRepo, parser, descriptionCreator);//TODO
+        GenericRProcess algorithm = new GenericRProcess(wellKnownName, config, dataTypeRegistry, resourceUrlGenerator, scriptRepo, resourceRepo, parser, descriptionCreator);//TODO
 //        SpringIntegrationHelper.autowireBean(algorithm);
         /*
          * weak inheritance implementation. When using injected singleton beans
-         * like R_Config we have to initialize description by hand
+         * like R_Config we have to initialize annotations by hand, the description
+         * is created on first request
          */
-        algorithm.initializeDescription();
+        algorithm.initializeAnnotations();
         validateProcessDescription(algorithm);
         return algorithm;
     }
@@ -359,21 +671,28 @@ public class RAlgorithmRepository implements AlgorithmRepository {
     @Override
     public Optional<IAlgorithm> getAlgorithm(String algorithmName) {
         if ( !this.config.isCacheProcesses()) {
-            LOGGER.debug("Process cache disabled, creating new process for id '{}'", algorithmName);
-            if ( !addAlgorithm(algorithmName)) {
-                LOGGER.warn("Problem adding algorithm for deactivated cache.");
+            // the existing process is only replaced if its script changed
+            GenericRProcess existing = this.registry.processes.get(new OwsCode(algorithmName));
+            if (existing != null && existing.isScriptCurrent()) {
+                LOGGER.trace("Process cache disabled, script unchanged for id '{}'", algorithmName);
+            } else {
+                LOGGER.debug("Process cache disabled, creating new process for id '{}'", algorithmName);
+                if ( !addAlgorithm(algorithmName)) {
+                    LOGGER.warn("Problem adding algorithm for deactivated cache.");
+                }
             }
         }
 
-        if ( !containsAlgorithm(algorithmName)) {
+        GenericRProcess process = this.registry.processes.get(new OwsCode(algorithmName));
+        if (process == null) {
             throw new RuntimeException("This repository does not contain an algorithm '" + algorithmName + "'");
         }
 
-        return Optional.ofNullable(this.rProcesses.get(algorithmName));
+        return Optional.of(process);
     }
 
     public boolean containsAlgorithm(String processID) {
-        return this.rProcesses.containsKey(processID);
+        return this.registry.processes.containsKey(new OwsCode(processID));
     }
 
     public boolean removeAlgorithm(Object item) {
@@ -394,32 +713,40 @@ public class RAlgorithmRepository implements AlgorithmRepository {
         } else {
             id = (String) item;
         }
-        if (this.rProcesses.containsKey(id)) {
-            this.rProcesses.remove(id);
+        if (id == null) {
+            LOGGER.debug("No algorithm registered for item '{}'", item);
+            return false;
+        }
 
-            // TODO remove scripts from script repo
+        unregisterProcess(id);
+        // TODO remove scripts from script repo
 
-        }
         LOGGER.info("Removed algorithm: {}", id);
         return true;
     }
 
     public RProcessInfo getProcessInfo(String processID) {
-        return this.processInfos.get(processID);
+        return this.registry.processInfos.get(processID);
     }
 
     public void shutdown() {
         LOGGER.info("Shutting down ...");
-        this.rProcesses.clear();
-        this.processInfos.clear();
+        if (this.scriptWatcher != null) {
+            this.scriptWatcher.shutdown();
+            this.scriptWatcher = null;
+        }
+        synchronized (registryLock) {
+            this.registry = Registry.EMPTY;
+        }
+        this.config.shutdown();
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("RAlgorithmRepository [");
-        if (rProcesses != null){
-            builder.append("algorithm count=").append(rProcesses.size()).append(", ");
+        if (registry != null){
+            builder.append("algorithm count=").append(registry.processes.size()).append(", ");
         }
         if (config != null){
             builder.append("config=").append(config).append(", ");
@@ -437,26 +764,27 @@ public class RAlgorithmRepository implements AlgorithmRepository {
 
     @Override
     public void destroy() {
+        shutdown();
     }
 
     @Override
     public Set<OwsCode> getAlgorithmNames() {
-        return this.rProcesses.keySet();
+        return this.registry.processes.keySet();
     }
 
     @Override
     public Optional<IAlgorithm> getAlgorithm(OwsCode id) {
-        return Optional.ofNullable(this.rProcesses.get(id));
+        return Optional.ofNullable(this.registry.processes.get(id));
     }
 
     @Override
     public Optional<TypedProcessDescription> getProcessDescription(OwsCode id) {
-        return Optional.ofNullable(getAlgorithm(id).get().getDescription());
+        return getAlgorithm(id).map(IAlgorithm::getDescription);
     }
 
     @Override
     public boolean containsAlgorithm(OwsCode id) {
-        return this.rProcesses.containsKey(id);
+        return this.registry.processes.containsKey(id);
     }
 
 
@@ -56,4 +56,9 @@ public class RWPSSessionVariables {
 
     public static final String WARNING_OUTPUT_STORAGE = "wpsWarningStorage";
 
+    /**
+     * temporary list of all input values, which is unpacked into the global environment
+     */
+    public static final String INPUT_VALUES = "wpsInputValues";
+
 }
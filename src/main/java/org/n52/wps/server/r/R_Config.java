@@ -43,15 +43,26 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.javaps.annotation.ConfigurableClass;
 import org.n52.javaps.annotation.Properties;
+import org.n52.wps.server.r.cache.RResultCache;
+import org.n52.wps.server.r.metadata.RAnnotationCache;
+import org.n52.wps.server.r.util.RConnectionPool;
 import org.n52.wps.server.r.util.RConnector;
+import org.n52.wps.server.r.util.RExecutor;
 import org.n52.wps.server.r.util.RFileExtensionFilter;
+import org.n52.wps.server.r.util.RFileTransfer;
+import org.n52.wps.server.r.util.RInputCache;
+import org.n52.wps.server.r.util.RServeEndpoint;
 import org.n52.wps.server.r.util.RStarter;
+import org.n52.wps.server.r.workspace.RSessionManager;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -102,6 +113,31 @@ public class R_Config implements ConfigurableClass{
     private static final String scriptDownloadEnabledKey = "R_enableScriptDownload";
     private static final String sessionInfoDownloadEnabledKey = "R_enableSessionInfoDownload";
     private static final String rServeUtilsScriptDirectoryKey = "R_utilsScriptDirectory";
+    private static final String poolMinSizeKey = "R_pool_minSize";
+    private static final String poolMaxSizeKey = "R_pool_maxSize";
+    private static final String poolBorrowTimeoutKey = "R_pool_borrowTimeout";
+    private static final String poolIdleTimeoutKey = "R_pool_idleTimeout";
+    private static final String warmSessionsKey = "R_session_warmSessions";
+    private static final String sessionPackagesKey = "R_session_packages";
+    private static final String rServeHostsKey = "R_RserveHosts";
+    private static final String rServeRoutingKey = "R_RserveRouting";
+    private static final String rServeRetryBackoffKey = "R_RserveRetryBackoff";
+    private static final String rServeStatisticsIntervalKey = "R_RserveStatisticsInterval";
+    private static final String localWorkersKey = "R_localWorkers";
+    private static final String localWorkerBasePortKey = "R_localWorkerBasePort";
+    private static final String executionTimeoutKey = "R_executionTimeout";
+    private static final String sharedFilesystemKey = "R_sharedFilesystem";
+    private static final String transferChunkSizeKey = "R_transferChunkSize";
+    private static final String transferCompressionKey = "R_transferCompression";
+    private static final String inputCacheDirectoryKey = "R_inputCacheDirectory";
+    private static final String inputCacheMaxSizeKey = "R_inputCacheMaxSize";
+    private static final String resultCacheDirectoryKey = "R_resultCacheDirectory";
+    private static final String resultCacheMaxSizeKey = "R_resultCacheMaxSize";
+    private static final String resultCacheTimeToLiveKey = "R_resultCacheTimeToLive";
+    private static final String enableAnnotationCacheKey = "R_enableAnnotationCache";
+    private static final String annotationCacheDirectoryKey = "R_annotationCacheDirectory";
+    private static final String startupThreadsKey = "R_startupThreads";
+    private static final String enableScriptWatcherKey = "R_enableScriptWatcher";
 
     private Boolean enableBatchStart;
     private String datatypeConfig;
@@ -120,6 +156,40 @@ public class R_Config implements ConfigurableClass{
     private boolean importDownloadEnabled;
     private boolean scriptDownloadEnabled;
     private boolean sessionInfoDownloadEnabled;
+    private int poolMinSize = 0;
+    private int poolMaxSize = 8;
+    private long poolBorrowTimeout = 30000;
+    private long poolIdleTimeout = 300000;
+    private int warmSessions = 0;
+    private String sessionPackages = "";
+    private String rServeHosts = "";
+    private String rServeRouting = RConnector.Routing.LEAST_OUTSTANDING.name();
+    private long rServeRetryBackoff = 5000;
+    private long rServeStatisticsInterval = 0;
+    private List<RServeEndpoint> rServeEndpoints = new ArrayList<>();
+    private int localWorkers = 0;
+    private int localWorkerBasePort = 6312;
+    private long executionTimeout = 0;
+    private String sharedFilesystem = "auto";
+    private int transferChunkSize = RFileTransfer.DEFAULT_CHUNK_SIZE;
+    private String transferCompression = RFileTransfer.Compression.AUTO.name();
+    private String inputCacheDirectory = "";
+    private long inputCacheMaxSize = 1024;
+    private String resultCacheDirectory = "";
+    private long resultCacheMaxSize = 1024;
+    private long resultCacheTimeToLive = 86400;
+    private boolean enableAnnotationCache = false;
+    private String annotationCacheDirectory = "";
+    private int startupThreads = 0;
+    private boolean enableScriptWatcher = false;
+
+    private RFileTransfer fileTransfer;
+
+    private RInputCache inputCache;
+
+    private RResultCache resultCache;
+
+    private RAnnotationCache annotationCache;
 
     public R_Config() {
         this.starter = new RStarter();
@@ -147,6 +217,39 @@ public class R_Config implements ConfigurableClass{
                 importDownloadEnabled = propertyNode.get(importDownloadEnabledKey).asBoolean();
                 scriptDownloadEnabled = propertyNode.get(scriptDownloadEnabledKey).asBoolean();
                 sessionInfoDownloadEnabled = propertyNode.get(sessionInfoDownloadEnabledKey).asBoolean();
+                poolMinSize = getIntProperty(propertyNode, poolMinSizeKey, poolMinSize);
+                poolMaxSize = getIntProperty(propertyNode, poolMaxSizeKey, poolMaxSize);
+                poolBorrowTimeout = getLongProperty(propertyNode, poolBorrowTimeoutKey, poolBorrowTimeout);
+                poolIdleTimeout = getLongProperty(propertyNode, poolIdleTimeoutKey, poolIdleTimeout);
+                warmSessions = getIntProperty(propertyNode, warmSessionsKey, warmSessions);
+                sessionPackages = getTextProperty(propertyNode, sessionPackagesKey, sessionPackages);
+                rServeHosts = getTextProperty(propertyNode, rServeHostsKey, rServeHosts);
+                rServeRouting = getTextProperty(propertyNode, rServeRoutingKey, rServeRouting);
+                rServeRetryBackoff = getLongProperty(propertyNode, rServeRetryBackoffKey, rServeRetryBackoff);
+                rServeStatisticsInterval = getLongProperty(propertyNode,
+                                                           rServeStatisticsIntervalKey,
+                                                           rServeStatisticsInterval);
+                localWorkers = getIntProperty(propertyNode, localWorkersKey, localWorkers);
+                localWorkerBasePort = getIntProperty(propertyNode, localWorkerBasePortKey, localWorkerBasePort);
+                executionTimeout = getLongProperty(propertyNode, executionTimeoutKey, executionTimeout);
+                sharedFilesystem = getTextProperty(propertyNode, sharedFilesystemKey, sharedFilesystem);
+                transferChunkSize = getIntProperty(propertyNode, transferChunkSizeKey, transferChunkSize);
+                transferCompression = getTextProperty(propertyNode, transferCompressionKey, transferCompression);
+                inputCacheDirectory = getTextProperty(propertyNode, inputCacheDirectoryKey, inputCacheDirectory);
+                inputCacheMaxSize = getLongProperty(propertyNode, inputCacheMaxSizeKey, inputCacheMaxSize);
+                resultCacheDirectory = getTextProperty(propertyNode, resultCacheDirectoryKey, resultCacheDirectory);
+                resultCacheMaxSize = getLongProperty(propertyNode, resultCacheMaxSizeKey, resultCacheMaxSize);
+                resultCacheTimeToLive = getLongProperty(propertyNode, resultCacheTimeToLiveKey, resultCacheTimeToLive);
+                enableAnnotationCache = Boolean.parseBoolean(getTextProperty(propertyNode,
+                                                                             enableAnnotationCacheKey,
+                                                                             Boolean.toString(enableAnnotationCache)));
+                annotationCacheDirectory = getTextProperty(propertyNode,
+                                                           annotationCacheDirectoryKey,
+                                                           annotationCacheDirectory);
+                startupThreads = getIntProperty(propertyNode, startupThreadsKey, startupThreads);
+                enableScriptWatcher = Boolean.parseBoolean(getTextProperty(propertyNode,
+                                                                           enableScriptWatcherKey,
+                                                                           Boolean.toString(enableScriptWatcher)));
             } catch (Exception e) {
                 LOGGER.error("Could not parse properties for class {}", this.getClass().getName());
                 LOGGER.error(e.getMessage());
@@ -155,10 +258,51 @@ public class R_Config implements ConfigurableClass{
         }else{
             LOGGER.error("Could not parse properties for class {}", this.getClass().getName());
         }
+        rServeEndpoints = parseRServeHosts(rServeHosts);
 
         LOGGER.info("NEW {}", this);
     }
 
+    /**
+     * optional properties were added after the initial configuration format, so they may be missing
+     */
+    private static int getIntProperty(JsonNode propertyNode, String key, int defaultValue) {
+        JsonNode value = propertyNode.get(key);
+        return value == null ? defaultValue : value.asInt(defaultValue);
+    }
+
+    /**
+     * parses the configured Rserve instances once, invalid entries are reported and left out
+     */
+    private List<RServeEndpoint> parseRServeHosts(String hosts) {
+        List<RServeEndpoint> endpoints = new ArrayList<>();
+        if (hosts == null) {
+            return endpoints;
+        }
+        for (String endpoint : hosts.split(DIR_DELIMITER)) {
+            if (endpoint.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                endpoints.add(RServeEndpoint.parse(endpoint, getRServePort()));
+            }
+            catch (IllegalArgumentException e) {
+                LOGGER.error("Configuration error in {}, the entry is ignored: {}", rServeHostsKey, e.getMessage());
+            }
+        }
+        return endpoints;
+    }
+
+    private static String getTextProperty(JsonNode propertyNode, String key, String defaultValue) {
+        JsonNode value = propertyNode.get(key);
+        return value == null ? defaultValue : value.asText();
+    }
+
+    private static long getLongProperty(JsonNode propertyNode, String key, long defaultValue) {
+        JsonNode value = propertyNode.get(key);
+        return value == null ? defaultValue : value.asLong(defaultValue);
+    }
+
    public String resolveFullPath(String pathToResolve) throws OwsExceptionReport {
         File file = new File(pathToResolve);
         if ( !file.isAbsolute()) {
@@ -237,6 +381,222 @@ public class R_Config implements ConfigurableClass{
                                                this.getRServePassword());
     }
 
+    /**
+     * @return the configured Rserve instances and the started local workers, or the single instance at host
+     *         and port if there are none
+     */
+    public List<RServeEndpoint> getRServeEndpoints() {
+        List<RServeEndpoint> endpoints = new ArrayList<>(rServeEndpoints);
+        for (Integer port : this.starter.getWorkerPorts()) {
+            endpoints.add(new RServeEndpoint("localhost", port, 1));
+        }
+        if (endpoints.isEmpty()) {
+            endpoints.add(new RServeEndpoint(getRServeHost(), getRServePort(), 1));
+        }
+        return endpoints;
+    }
+
+    private synchronized RConnector getConnector() {
+        if ( !this.connector.hasEndpoints()) {
+            this.connector.setRouting(RConnector.Routing.valueOf(rServeRouting.trim().toUpperCase()));
+            this.connector.setRetryBackoff(rServeRetryBackoff);
+            this.connector.setBorrowTimeout(poolBorrowTimeout);
+            if (localWorkers > 0) {
+                try {
+                    this.starter.startWorkers(localWorkers, localWorkerBasePort);
+                }
+                catch (IOException e) {
+                    LOGGER.error("Could not start {} local Rserve workers", localWorkers, e);
+                }
+            }
+            for (RServeEndpoint endpoint : getRServeEndpoints()) {
+                this.connector.addEndpoint(endpoint, createConnectionPool(endpoint));
+            }
+            if (rServeStatisticsInterval > 0) {
+                this.connector.scheduleStatisticsLog(rServeStatisticsInterval * 1000);
+            }
+        }
+        return this.connector;
+    }
+
+    /**
+     * @return true if the endpoint is one of the local workers, a remote host on the same port is not
+     */
+    private boolean isLocalWorker(RServeEndpoint endpoint) {
+        return endpoint.isLocalhost() && this.starter.getWorkerPorts().contains(endpoint.getPort());
+    }
+
+    private RConnectionPool createConnectionPool(RServeEndpoint endpoint) {
+        RConnectionPool.RSessionPreparer preparer = null;
+        if (isWarmSessions()) {
+            preparer = connection -> new RSessionManager(connection, this, null).prepareSession(new RExecutor());
+        }
+        // supervised workers are restarted by the starter
+        boolean batchStart = this.getEnableBatchStart() && !isLocalWorker(endpoint);
+        return new RConnectionPool(this.connector.createConnectionFactory(endpoint,
+                                                                          batchStart,
+                                                                          this.getRServeUser(),
+                                                                          this.getRServePassword()),
+                                   preparer,
+                                   warmSessions,
+                                   poolMinSize,
+                                   poolMaxSize,
+                                   poolBorrowTimeout,
+                                   poolIdleTimeout);
+    }
+
+    /**
+     * @return a pooled connection to one of the configured Rserve instances, which must be handed back with
+     *         {@link #releaseRConnection(FilteredRConnection)} or
+     *         {@link #invalidateRConnection(FilteredRConnection)}
+     */
+    public FilteredRConnection borrowRConnection() throws RserveException {
+        return getConnector().borrowConnection();
+    }
+
+    public void releaseRConnection(FilteredRConnection connection) {
+        getConnector().releaseConnection(connection);
+    }
+
+    public void invalidateRConnection(FilteredRConnection connection) {
+        getConnector().invalidateConnection(connection);
+    }
+
+    /**
+     * Runs the task after the delay unless the returned future is cancelled before.
+     */
+    public ScheduledFuture< ? > scheduleWatchdog(Runnable task, long delayMillis) {
+        return getConnector().scheduleWatchdog(task, delayMillis);
+    }
+
+    /**
+     * Runs the task repeatedly until the returned future is cancelled.
+     */
+    public ScheduledFuture< ? > scheduleMonitor(Runnable task, long periodMillis) {
+        return getConnector().scheduleMonitor(task, periodMillis);
+    }
+
+    /**
+     * Kills the R process behind the connection, which must be invalidated afterwards.
+     *
+     * @param rWorkDirectory
+     *        the working directory of the session to delete, or <code>null</code>
+     */
+    public boolean terminateRConnection(FilteredRConnection connection, String rWorkDirectory) {
+        return getConnector().terminate(connection, rWorkDirectory);
+    }
+
+    /**
+     * @return the default maximum duration of a process execution in seconds, 0 for no limit
+     */
+    public long getExecutionTimeout() {
+        return executionTimeout;
+    }
+
+    /**
+     * @return true if an Rserve on the given host can read the files of the WPS, which is assumed for
+     *         localhost unless configured otherwise
+     */
+    public boolean isSharedFilesystem(String host) {
+        if ("auto".equalsIgnoreCase(sharedFilesystem.trim())) {
+            return "localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host);
+        }
+        return Boolean.parseBoolean(sharedFilesystem.trim());
+    }
+
+    /**
+     * @return the number of threads parsing and initializing scripts at startup, defaults to the number of
+     *         available processors
+     */
+    public int getStartupThreads() {
+        if (startupThreads < 1) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return startupThreads;
+    }
+
+    /**
+     * @return true if the script and resource directories are watched so that changed scripts are reloaded
+     *         without a restart
+     */
+    public boolean isScriptWatcherEnabled() {
+        return enableScriptWatcher;
+    }
+
+    /**
+     * @return the component for streaming files between WPS and Rserve, shared by all executions
+     */
+    public synchronized RFileTransfer getFileTransfer() {
+        if (this.fileTransfer == null) {
+            this.fileTransfer = new RFileTransfer(transferChunkSize,
+                                                  RFileTransfer.Compression.valueOf(transferCompression.trim().toUpperCase()));
+        }
+        return this.fileTransfer;
+    }
+
+    /**
+     * @return the cache for input files on the Rserve host, or <code>null</code> if no cache directory is
+     *         configured
+     */
+    public synchronized RInputCache getInputCache() {
+        if (this.inputCache == null && inputCacheDirectory != null && !inputCacheDirectory.trim().isEmpty()) {
+            this.inputCache = new RInputCache(inputCacheDirectory.trim(),
+                                              inputCacheMaxSize * 1024 * 1024,
+                                              getFileTransfer());
+        }
+        return this.inputCache;
+    }
+
+    /**
+     * @return the store for results of deterministic processes, in a temporary directory unless a directory
+     *         is configured
+     */
+    public synchronized RResultCache getResultCache() {
+        if (this.resultCache == null) {
+            File directory = resultCacheDirectory == null || resultCacheDirectory.trim().isEmpty()
+                    ? new File(System.getProperty("java.io.tmpdir"), "wps4r-results")
+                    : new File(resultCacheDirectory.trim());
+            this.resultCache = new RResultCache(directory,
+                                                resultCacheMaxSize * 1024 * 1024,
+                                                TimeUnit.SECONDS.toMillis(resultCacheTimeToLive));
+        }
+        return this.resultCache;
+    }
+
+    /**
+     * @return the persistent cache of parsed script annotations and validation results, or <code>null</code> if
+     *         it is disabled or cannot be created
+     */
+    public synchronized RAnnotationCache getAnnotationCache() {
+        if (this.annotationCache == null && enableAnnotationCache) {
+            File directory = annotationCacheDirectory == null || annotationCacheDirectory.trim().isEmpty()
+                    ? new File(System.getProperty("java.io.tmpdir"), "wps4r-annotations")
+                    : new File(annotationCacheDirectory.trim());
+            File datatypeConfigFile = null;
+            try {
+                datatypeConfigFile = new File(resolveFullPath(datatypeConfig));
+            }
+            catch (OwsExceptionReport | RuntimeException e) {
+                LOGGER.debug("No data type configuration for the annotation cache key: {}", e.getMessage());
+            }
+
+            try {
+                this.annotationCache = new RAnnotationCache(directory, datatypeConfigFile);
+            }
+            catch (IOException e) {
+                LOGGER.error("Could not create annotation cache in {}, disabling it", directory, e);
+                enableAnnotationCache = false;
+            }
+        }
+        return this.annotationCache;
+    }
+
+    public synchronized void shutdown() {
+        LOGGER.info("Shutting down {}", this.connector);
+        this.connector.shutdown();
+        this.starter.shutdown();
+    }
+
     private String getRServePassword() {
         return rServePassword;
     }
@@ -413,6 +773,27 @@ public class R_Config implements ConfigurableClass{
         return sessionMemoryLimit;
     }
 
+    /**
+     * @return true if sessions are prepared in the background with utility scripts, packages and server
+     *         variables, so that executions only have to run the per-job steps
+     */
+    public boolean isWarmSessions() {
+        return warmSessions > 0;
+    }
+
+    public Collection<String> getSessionPackages() {
+        Collection<String> packages = new ArrayList<>();
+        if (sessionPackages == null) {
+            return packages;
+        }
+        for (String s : sessionPackages.split(DIR_DELIMITER)) {
+            if ( !s.trim().isEmpty()) {
+                packages.add(s.trim());
+            }
+        }
+        return packages;
+    }
+
     public String getWdStrategy() {
         return wdStrategy;
     }
@@ -56,7 +56,8 @@ import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
 
 /**
- * Management class to store and retrieve resources used by scripts.
+ * Management class to store and retrieve resources used by scripts. Access is synchronized because
+ * processes register their resources concurrently during startup.
  *
  * @author Daniel Nüst
  *
@@ -89,7 +90,7 @@ public class ResourceFileRepository {
         return true;
     }
 
-    public void addResourceDirectory(Path dir) {
+    public synchronized void addResourceDirectory(Path dir) {
         this.resourceDirectories.add(dir);
         LOGGER.info("Resource directory '{}' added, now have {}: {}",
                      dir,
@@ -97,7 +98,7 @@ public class ResourceFileRepository {
                      Arrays.toString(resourceDirectories.toArray()));
     }
 
-    public Collection<R_Resource> getR_Resourcce(Path path) throws OwsExceptionReport {
+    public synchronized Collection<R_Resource> getR_Resourcce(Path path) throws OwsExceptionReport {
         if ( !Files.exists(path)){
 //            throw new ExceptionReport("Resource file not found: " + path, ExceptionReport.NO_APPLICABLE_CODE);
             throw new NoApplicableCodeException();
@@ -108,7 +109,7 @@ public class ResourceFileRepository {
         return inverse.get(path);
     }
 
-    public Path getResource(R_Resource resource) throws OwsExceptionReport {
+    public synchronized Path getResource(R_Resource resource) throws OwsExceptionReport {
         Path out = resourcePaths.get(resource);
         if (out != null && Files.exists(out) && out.isAbsolute() && out.toFile().canRead()) {
             return out;
@@ -146,7 +147,7 @@ public class ResourceFileRepository {
      *         repo, false otherwise.
      */
     @SuppressWarnings("unchecked")
-    public boolean registerResources(RAnnotation rAnnotation) {
+    public synchronized boolean registerResources(RAnnotation rAnnotation) {
         if ( ! (rAnnotation instanceof ResourceAnnotation)){
             return false;
         }
@@ -196,7 +197,7 @@ public class ResourceFileRepository {
     }
 
     @SuppressWarnings("unchecked")
-    public boolean registerImport(RAnnotation rAnnotation, Path scriptDirectory) {
+    public synchronized boolean registerImport(RAnnotation rAnnotation, Path scriptDirectory) {
         if ( ! (rAnnotation instanceof ImportAnnotation)){
             return false;
         }
@@ -248,7 +249,7 @@ public class ResourceFileRepository {
         return allRegistered;
     }
 
-    public void reset() {
+    public synchronized void reset() {
         LOGGER.info("Resetting {}", this);
 
         this.resourceDirectories.clear();
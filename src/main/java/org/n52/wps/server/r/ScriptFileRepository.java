@@ -29,27 +29,26 @@
 package org.n52.wps.server.r;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.wps.server.r.info.RProcessInfo;
 import org.n52.wps.server.r.metadata.RAnnotationParser;
+import org.n52.wps.server.r.metadata.RParsedScript;
 import org.n52.wps.server.r.syntax.RAnnotation;
 import org.n52.wps.server.r.syntax.RAnnotationException;
-import org.n52.wps.server.r.syntax.RAnnotationType;
 import org.n52.wps.server.r.syntax.RAttribute;
 import org.n52.wps.server.r.util.InvalidRScriptException;
 import org.n52.wps.server.r.util.RFileExtensionFilter;
@@ -72,10 +71,10 @@ public class ScriptFileRepository {
     private static final Logger LOGGER = LoggerFactory.getLogger(ScriptFileRepository.class);
 
     /** Maps current R-script files to identifiers **/
-    private final Map<File, String> fileToWknMap = new HashMap<>();
+    private final Map<File, String> fileToWknMap = new ConcurrentHashMap<>();
 
     /** Maps each identifier to (multiple versioned) R script file **/
-    private final Map<String, Map<Integer, File>> wknToFileMap = new HashMap<>();
+    private final Map<String, Map<Integer, File>> wknToFileMap = new ConcurrentHashMap<>();
 
     @Autowired
     private RAnnotationParser annotationParser;
@@ -88,10 +87,10 @@ public class ScriptFileRepository {
     }
 
     public File getScriptFile(String wkn) {
-        if ( !wknToFileMap.containsKey(wkn)) {
+        final Map<Integer, File> versionedScriptFiles = getScriptFileVersionsForWKN(wkn);
+        if (versionedScriptFiles == null) {
             throw new IllegalStateException("Missing R Script for process '" + wkn + "'.");
         }
-        final Map<Integer, File> versionedScriptFiles = getScriptFileVersionsForWKN(wkn);
         SortedSet<Integer> versions = new TreeSet<>(versionedScriptFiles.keySet());
         return versionedScriptFiles.get(versions.first());
     }
@@ -169,19 +168,18 @@ public class ScriptFileRepository {
     }
 
     public boolean isValidScriptFile(String wkn) {
-        try (FileInputStream fis = new FileInputStream(getScriptFile(wkn));) {
+        try {
             if ( !hasReadableScriptFile(wkn)) {
                 LOGGER.error("Script file not available/readable for process '{}'!", wkn);
                 return false;
             }
-            final boolean valid = annotationParser.validateScript(fis, wkn);
-            if ( !valid) {
-                final Collection<Exception> errors = annotationParser.validateScriptWithErrors(fis, wkn);
+            final Collection<Exception> errors = annotationParser.validateScriptWithErrors(getScriptFile(wkn), wkn);
+            if ( !errors.isEmpty()) {
                 LOGGER.error("invalid script content: {}", errors.stream()
                         .map(e -> e.getMessage())
                         .collect(Collectors.joining(", \n")));
             }
-            return valid;
+            return errors.isEmpty();
         }
         catch (IOException e) {
             LOGGER.error("Script file unavailable for process '{}'.", wkn, e);
@@ -246,25 +244,28 @@ public class ScriptFileRepository {
         return allRegistered;
     }
 
-    public boolean registerScriptFile(File file) throws RAnnotationException, OwsExceptionReport {
+    /**
+     * registration is serialized to keep identifier and version conflict checks consistent, scripts can be
+     * parsed concurrently beforehand with {@link RAnnotationParser#getParsedScript(File)}
+     */
+    public synchronized boolean registerScriptFile(File file) throws RAnnotationException, OwsExceptionReport {
         boolean registered = false;
 
-        try (FileInputStream fis = new FileInputStream(file);) {
+        try {
 
             if (fileToWknMap.containsKey(file.getAbsoluteFile())){
                 LOGGER.debug("File already registered, not doing it again: {}", file);
             }
             else {
-                LOGGER.info("Registering script file {} from input {}", file, fis);
+                LOGGER.info("Registering script file {}", file);
 
-                List<RAnnotation> annotations = annotationParser.parseAnnotationsfromScript(fis);
-                if (annotations.size() < 1) {
+                RParsedScript parsedScript = annotationParser.getParsedScript(file);
+                if (parsedScript.getAnnotations().size() < 1) {
                     LOGGER.warn("Could not parse any annotations from file '{}'. Did not load the script.", file);
                     registered = false;
                 }
                 else {
-                    RAnnotation descriptionAnnotation = RAnnotation.filterFirstMatchingAnnotation(annotations,
-                                                                                                  RAnnotationType.DESCRIPTION);
+                    RAnnotation descriptionAnnotation = parsedScript.getDescriptionAnnotation();
                     if (descriptionAnnotation == null) {
                         LOGGER.error("No description annotation for script '{}' - cannot be registered!", file);
                         registered = false;
@@ -324,12 +325,13 @@ public class ScriptFileRepository {
                             throw new NoApplicableCodeException();
                         }
 
-                        if ( !wknToFileMap.containsKey(wkn)) {
-                            wknToFileMap.put(wkn, new TreeMap<Integer, File>(Collections.reverseOrder()));
+                        // versions are replaced as a whole so that unsynchronized readers see a consistent map
+                        Map<Integer, File> files = new TreeMap<Integer, File>(Collections.reverseOrder());
+                        if (wknToFileMap.containsKey(wkn)) {
+                            files.putAll(wknToFileMap.get(wkn));
                         }
 
                         // check conflicting versions
-                        Map<Integer, File> files = wknToFileMap.get(wkn);
                         if (files.containsKey(version)) {
                             String message = String.format("Conflicting version '%s' detected for algorithm '%s':\nFiles: %s \nTo be added: '%s'",
                                                            version,
@@ -342,21 +344,60 @@ public class ScriptFileRepository {
                         }
 
                         // actually "register"
-                        fileToWknMap.put(file.getAbsoluteFile(), wkn);
                         files.put(version, file.getAbsoluteFile());
+                        wknToFileMap.put(wkn, files);
+                        fileToWknMap.put(file.getAbsoluteFile(), wkn);
                         registered = true;
                     }
                 }
             }
         }
         catch (IOException e) {
-            LOGGER.error("Could not create input stream for file '{}'", file, e);
+            LOGGER.error("Could not read file '{}'", file, e);
         }
 
         return registered;
     }
 
-    public void reset() {
+    /**
+     * Removes a script file, e.g. after it was changed or deleted. The process identifier stays registered as
+     * long as other versions of the script are available.
+     *
+     * @param file the file to remove.
+     * @return the identifier of the script file, or <code>null</code> if it was not registered.
+     */
+    public synchronized String unregisterScriptFile(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        String wkn = fileToWknMap.remove(absoluteFile);
+        if (wkn == null) {
+            return null;
+        }
+
+        Map<Integer, File> files = new TreeMap<Integer, File>(Collections.reverseOrder());
+        Map<Integer, File> registeredFiles = wknToFileMap.get(wkn);
+        if (registeredFiles != null) {
+            files.putAll(registeredFiles);
+        }
+        files.values().remove(absoluteFile);
+        if (files.isEmpty()) {
+            wknToFileMap.remove(wkn);
+        }
+        else {
+            wknToFileMap.put(wkn, files);
+        }
+
+        LOGGER.info("Unregistered script file {} of process '{}'", absoluteFile, wkn);
+        return wkn;
+    }
+
+    /**
+     * @return a snapshot of all registered script files
+     */
+    public Collection<File> getRegisteredScriptFiles() {
+        return new ArrayList<>(fileToWknMap.keySet());
+    }
+
+    public synchronized void reset() {
         LOGGER.info("Resetting {}", this);
 
         this.wknToFileMap.clear();
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.n52.javaps.gt.io.data.GenericFileDataWithGT;
+import org.n52.javaps.gt.io.data.binding.complex.GenericFileDataWithGTBinding;
+import org.n52.javaps.io.Data;
+import org.n52.javaps.io.GenericFileData;
+import org.n52.javaps.io.data.binding.complex.GenericFileDataBinding;
+import org.n52.javaps.io.literal.LiteralData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk-backed store for the outputs of deterministic processes, see {@link RResultCacheKey}. Every result is
+ * a directory named by its key, which holds a manifest and one file per output. Literal outputs are stored
+ * serialized, file outputs with their content and mime type. Results with other outputs are not cached.
+ *
+ * Entries expire after the time to live. The least recently used entries are removed when the size of the
+ * cache exceeds its limit.
+ */
+public class RResultCache {
+
+    private static final String MANIFEST = "outputs.properties";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String KIND_LITERAL = "literal";
+
+    private static final String KIND_FILE = "file";
+
+    private static final String KIND_FILE_GT = "filegt";
+
+    private static Logger log = LoggerFactory.getLogger(RResultCache.class);
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final long timeToLive;
+
+    /**
+     * @param maxSize
+     *        the maximum size of all cached results in bytes
+     * @param timeToLive
+     *        the time in milliseconds after which a result expires, 0 to keep results until they are evicted
+     */
+    public RResultCache(File directory, long maxSize, long timeToLive) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        if ( !directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Could not create result cache directory {}", directory);
+        }
+        log.info("NEW {}", this);
+    }
+
+    /**
+     * @return the cached outputs for the key, or <code>null</code> if there are none or they expired
+     */
+    public Map<String, Data<?>> get(String key) {
+        File entry = new File(directory, key);
+        File manifestFile = new File(entry, MANIFEST);
+        if ( !manifestFile.isFile()) {
+            return null;
+        }
+        if (isExpired(manifestFile)) {
+            log.debug("Cached result {} expired", key);
+            delete(entry);
+            return null;
+        }
+
+        try {
+            Map<String, Data<?>> outputs = read(entry);
+            // the modification time of the directory is the last access
+            if ( !entry.setLastModified(System.currentTimeMillis())) {
+                log.debug("Could not update last access of cached result {}", key);
+            }
+            log.debug("Found cached result {} with outputs {}", key, outputs.keySet());
+            return outputs;
+        }
+        catch (IOException | ClassNotFoundException | RuntimeException e) {
+            log.warn("Could not read cached result {}, ignoring it: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the outputs, if all of them can be cached. File outputs are copied from their base files, so their
+     * data streams are not read and the outputs can still be used. Failing to store the outputs only means
+     * they are not cached.
+     */
+    public void put(String key, Map<String, Data<?>> outputs) {
+        for (Entry<String, Data<?>> output : outputs.entrySet()) {
+            if ( !isCacheable(output.getValue())) {
+                log.debug("Not caching result {}, output {} cannot be stored: {}",
+                          key,
+                          output.getKey(),
+                          output.getValue());
+                return;
+            }
+        }
+
+        File entry = new File(directory, key);
+        File tmp = new File(directory, key + "." + UUID.randomUUID().toString() + TMP_SUFFIX);
+        try {
+            write(tmp, outputs);
+            if (entry.exists()) {
+                // stored concurrently by another execution with the same key
+                delete(tmp);
+            }
+            else {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            log.debug("Cached result {} with outputs {}", key, outputs.keySet());
+        }
+        catch (IOException | RuntimeException e) {
+            log.warn("Could not cache result {}: {}", key, e.getMessage());
+            delete(tmp);
+            return;
+        }
+        evict();
+    }
+
+    private static boolean isCacheable(Data<?> value) {
+        if (value instanceof LiteralData) {
+            return value.getPayload() == null || value.getPayload() instanceof Serializable;
+        }
+        return value instanceof GenericFileDataBinding || value instanceof GenericFileDataWithGTBinding;
+    }
+
+    private static void write(File entry, Map<String, Data<?>> outputs) throws IOException {
+        if ( !entry.mkdirs()) {
+            throw new IOException("Could not create directory " + entry);
+        }
+
+        Properties manifest = new Properties();
+        int index = 0;
+        for (Entry<String, Data<?>> output : outputs.entrySet()) {
+            String id = output.getKey();
+            Data<?> value = output.getValue();
+            String fileName = Integer.toString(index++);
+
+            if (value instanceof LiteralData) {
+                manifest.setProperty(id + ".kind", KIND_LITERAL);
+                try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(entry, fileName)))) {
+                    out.writeObject(value.getPayload());
+                }
+            }
+            else {
+                File baseFile;
+                if (value instanceof GenericFileDataWithGTBinding) {
+                    GenericFileDataWithGT file = (GenericFileDataWithGT) value.getPayload();
+                    manifest.setProperty(id + ".kind", KIND_FILE_GT);
+                    manifest.setProperty(id + ".mimeType", file.getMimeType());
+                    baseFile = file.getBaseFile(false);
+                }
+                else {
+                    GenericFileData file = (GenericFileData) value.getPayload();
+                    manifest.setProperty(id + ".kind", KIND_FILE);
+                    manifest.setProperty(id + ".mimeType", file.getMimeType());
+                    baseFile = file.getBaseFile(false);
+                }
+                if (baseFile == null || !baseFile.isFile()) {
+                    throw new IOException("Output " + id + " has no base file");
+                }
+                Files.copy(baseFile.toPath(), new File(entry, fileName).toPath());
+            }
+            manifest.setProperty(id + ".file", fileName);
+        }
+
+        // the manifest is written last and marks the entry as complete
+        try (OutputStream out = new FileOutputStream(new File(entry, MANIFEST))) {
+            manifest.store(out, "cached outputs");
+        }
+    }
+
+    /**
+     * literal outputs are read right away, file outputs are created from the cached files in the same way as
+     * the file outputs of an execution
+     */
+    private static Map<String, Data<?>> read(File entry) throws IOException, ClassNotFoundException {
+        Properties manifest = new Properties();
+        try (InputStream in = new FileInputStream(new File(entry, MANIFEST))) {
+            manifest.load(in);
+        }
+
+        Map<String, Data<?>> outputs = new HashMap<>();
+        for (String property : manifest.stringPropertyNames()) {
+            if ( !property.endsWith(".kind")) {
+                continue;
+            }
+            String id = property.substring(0, property.length() - ".kind".length());
+            String kind = manifest.getProperty(property);
+            File file = new File(entry, manifest.getProperty(id + ".file"));
+            String mimeType = manifest.getProperty(id + ".mimeType");
+
+            if (KIND_LITERAL.equals(kind)) {
+                try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+                    outputs.put(id, new LiteralData(in.readObject()));
+                }
+            }
+            else if (KIND_FILE_GT.equals(kind)) {
+                outputs.put(id, new GenericFileDataWithGTBinding(new GenericFileDataWithGT(file, mimeType)));
+            }
+            else {
+                outputs.put(id, new GenericFileDataBinding(new GenericFileData(file, mimeType)));
+            }
+        }
+        return outputs;
+    }
+
+    private boolean isExpired(File manifestFile) {
+        return timeToLive > 0 && System.currentTimeMillis() - manifestFile.lastModified() > timeToLive;
+    }
+
+    /**
+     * removes expired entries and then the least recently used entries until the cache fits its size limit
+     */
+    private synchronized void evict() {
+        File[] entries = directory.listFiles(f -> f.isDirectory() && !f.getName().endsWith(TMP_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+
+        List<File> remaining = new ArrayList<>();
+        long total = 0;
+        for (File entry : entries) {
+            if (isExpired(new File(entry, MANIFEST))) {
+                log.debug("Removing expired cached result {}", entry.getName());
+                delete(entry);
+            }
+            else {
+                remaining.add(entry);
+                total += size(entry);
+            }
+        }
+
+        remaining.sort(Comparator.comparingLong(File::lastModified));
+        for (File entry : remaining) {
+            if (total <= maxSize) {
+                break;
+            }
+            long size = size(entry);
+            log.debug("Removing least recently used cached result {} ({} bytes)", entry.getName(), size);
+            delete(entry);
+            total -= size;
+        }
+    }
+
+    private static long size(File entry) {
+        long size = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void delete(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        if (entry.exists() && !entry.delete()) {
+            log.warn("Could not delete {}", entry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RResultCache [directory=" + directory + ", maxSize=" + maxSize + ", timeToLive=" + timeToLive
+                + "]";
+    }
+
+}
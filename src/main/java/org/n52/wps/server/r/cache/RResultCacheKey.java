@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.n52.javaps.algorithm.ProcessInputs;
+import org.n52.javaps.gt.io.data.GenericFileDataWithGT;
+import org.n52.javaps.gt.io.data.binding.complex.GenericFileDataWithGTBinding;
+import org.n52.javaps.io.Data;
+import org.n52.javaps.io.GenericFileData;
+import org.n52.javaps.io.data.binding.complex.GenericFileDataBinding;
+import org.n52.javaps.io.literal.LiteralData;
+import org.n52.shetland.ogc.ows.OwsCode;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Builds the key of a cached execution result from the content of the script, its imports and resources, and
+ * the normalised inputs. Each part is added to a SHA-256 hash, so the key changes if any of them changes.
+ */
+public class RResultCacheKey {
+
+    private final Hasher hasher = Hashing.sha256().newHasher();
+
+    /**
+     * adds the content of a file, or of all files in a directory in the order of their names
+     */
+    public RResultCacheKey addFile(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            addString("dir:" + file.getName() + ":" + files.length);
+            for (File child : files) {
+                addFile(child);
+            }
+            return this;
+        }
+
+        addString("file:" + file.getName());
+        addContent(file);
+        return this;
+    }
+
+    /**
+     * adds the inputs ordered by their identifiers, literal values by type and value and file inputs by mime
+     * type and content
+     *
+     * @return false if an input cannot be added to the key, so the result must not be cached
+     */
+    public boolean addInputs(ProcessInputs inputs) throws IOException {
+        Map<String, List<Data<?>>> sorted = new TreeMap<>();
+        for (Entry<OwsCode, List<Data<?>>> entry : inputs.entrySet()) {
+            sorted.put(entry.getKey().getValue(), entry.getValue());
+        }
+
+        for (Entry<String, List<Data<?>>> entry : sorted.entrySet()) {
+            addString("input:" + entry.getKey() + ":" + entry.getValue().size());
+            for (Data<?> value : entry.getValue()) {
+                if ( !addInput(value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean addInput(Data<?> value) throws IOException {
+        if (value == null || value.getPayload() == null) {
+            addString("null");
+            return true;
+        }
+
+        if (value instanceof LiteralData) {
+            Object payload = value.getPayload();
+            addString("literal:" + payload.getClass().getName() + ":" + payload);
+            return true;
+        }
+
+        File baseFile = null;
+        String mimeType = null;
+        if (value instanceof GenericFileDataWithGTBinding) {
+            GenericFileDataWithGT file = (GenericFileDataWithGT) value.getPayload();
+            baseFile = file.getBaseFile(false);
+            mimeType = file.getMimeType();
+        }
+        else if (value instanceof GenericFileDataBinding) {
+            GenericFileData file = (GenericFileData) value.getPayload();
+            baseFile = file.getBaseFile(false);
+            mimeType = file.getMimeType();
+        }
+
+        if (baseFile == null || !baseFile.isFile()) {
+            return false;
+        }
+        addString("complex:" + mimeType);
+        addContent(baseFile);
+        return true;
+    }
+
+    private void addString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // the length keeps adjacent values apart
+        hasher.putString(Integer.toString(bytes.length), StandardCharsets.UTF_8);
+        hasher.putByte((byte) ':');
+        hasher.putBytes(bytes);
+    }
+
+    private void addContent(File file) throws IOException {
+        Files.asByteSource(file).copyTo(Funnels.asOutputStream(hasher));
+    }
+
+    /**
+     * @return the hex encoded hash of everything added so far, the key cannot be extended afterwards
+     */
+    public String build() {
+        return hasher.hash().toString();
+    }
+
+}
@@ -28,6 +28,7 @@
  */
 package org.n52.wps.server.r.data;
 
+import org.n52.javaps.gt.io.data.binding.complex.GTRasterDataBinding;
 import org.n52.javaps.gt.io.data.binding.complex.GTVectorDataBinding;
 import org.n52.javaps.gt.io.data.binding.complex.GenericFileDataWithGTBinding;
 import org.n52.javaps.io.Data;
@@ -65,6 +66,8 @@ public enum RDataType implements RTypeDefinition {
     // SHAPE_ZIP("shp_zip",GenericFileDataConstants.MIME_TYPE_ZIPPED_SHP,GenericFileDataBinding.class,true),
     SHAPE_ZIP2("shp_x", GenericFileDataConstants.MIME_TYPE_ZIPPED_SHP, GTVectorDataBinding.class, true, null, "base64"),
     KML("kml", GenericFileDataConstants.MIME_TYPE_KML, GenericFileDataWithGTBinding.class, true, null, "UTF-8"),
+    // numeric raster input passed to R as a matrix with extent and crs attributes instead of a file:
+    GEOTIFF_MATRIX("geotiff_matrix", GenericFileDataConstants.MIME_TYPE_GEOTIFF, GTRasterDataBinding.class, true, null, "base64"),
 
     // graphical data
     GIF("gif", GenericFileDataConstants.MIME_TYPE_IMAGE_GIF, GenericFileDataBinding.class, true, null, "base64"),
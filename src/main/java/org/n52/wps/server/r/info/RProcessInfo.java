@@ -29,7 +29,6 @@
 package org.n52.wps.server.r.info;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
 import org.n52.wps.server.r.metadata.RAnnotationParser;
@@ -56,8 +55,8 @@ public class RProcessInfo {
     public RProcessInfo(String wkn, File scriptfile, RAnnotationParser parser) {
         this.wkn = wkn;
 
-        try (FileInputStream fis = new FileInputStream(scriptfile);) {
-            this.isValid = parser.validateScript(fis, wkn);
+        try {
+            this.isValid = parser.validateScript(scriptfile, wkn);
         }
         catch (RuntimeException | IOException | RAnnotationException e) {
             LOGGER.error("Script validation failed. Last exception stored for the process information.", e);
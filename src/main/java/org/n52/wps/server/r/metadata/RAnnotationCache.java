@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
+import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
+import org.n52.wps.server.r.syntax.RAnnotationException;
+import org.n52.wps.server.r.syntax.RAnnotationType;
+import org.n52.wps.server.r.util.RChecksums;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Persists the annotations parsed from scripts and the results of their validation, so that unchanged scripts
+ * do not have to be parsed and validated again after a restart. Entries are JSON files named by the checksum
+ * of the script content and of the data type configuration, so a change to either leads to a new entry.
+ *
+ * The annotations are stored as the type and attribute text found in the script and are created from these on
+ * loading, because they refer to the data type registry and configuration of the running service.
+ */
+public class RAnnotationCache {
+
+    private static final String ANNOTATIONS = "annotations";
+
+    private static final String VALIDATION = "validation";
+
+    private static final String TYPE = "type";
+
+    private static final String TEXT = "text";
+
+    private static final String SUFFIX = ".json";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** types of validation errors, so that they are restored with the type they were created with */
+    private static final String ERROR_ANNOTATION = "annotation";
+
+    private static final String ERROR_OWS = "ows";
+
+    private static final String ERROR_OTHER = "other";
+
+    private static Logger LOGGER = LoggerFactory.getLogger(RAnnotationCache.class);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, ObjectNode> entries = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    private final String datatypeConfigChecksum;
+
+    /**
+     * @param datatypeConfig
+     *        the data type configuration file, or <code>null</code> if there is none
+     */
+    public RAnnotationCache(File directory, File datatypeConfig) throws IOException {
+        this.directory = directory;
+        this.datatypeConfigChecksum = datatypeConfig != null && datatypeConfig.isFile() ? RChecksums.sha256(datatypeConfig) : "";
+
+        if ( !directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warn("Could not create annotation cache directory {}", directory);
+        }
+        LOGGER.info("NEW {}", this);
+    }
+
+    /**
+     * @return the key of the cache entry for a script with the given checksum, see {@link RChecksums#sha256(File)}
+     */
+    public String createKey(String scriptChecksum) {
+        return scriptChecksum + "-" + datatypeConfigChecksum.substring(0, Math.min(16, datatypeConfigChecksum.length()));
+    }
+
+    /**
+     * @return the type and attribute text of the annotations in the order of the script, or <code>null</code>
+     *         if the script was not parsed yet
+     */
+    public synchronized List<Entry<RAnnotationType, String>> getAnnotations(String key) {
+        ObjectNode entry = getEntry(key);
+        if (entry == null || !entry.has(ANNOTATIONS)) {
+            return null;
+        }
+
+        List<Entry<RAnnotationType, String>> annotations = new ArrayList<>();
+        for (JsonNode annotation : entry.get(ANNOTATIONS)) {
+            annotations.add(new SimpleImmutableEntry<>(RAnnotationType.valueOf(annotation.get(TYPE).asText()),
+                                                        annotation.get(TEXT).asText()));
+        }
+        return annotations;
+    }
+
+    public synchronized void putAnnotations(String key, List<Entry<RAnnotationType, String>> annotations) {
+        ObjectNode entry = getOrCreateEntry(key);
+        ArrayNode array = entry.putArray(ANNOTATIONS);
+        for (Entry<RAnnotationType, String> annotation : annotations) {
+            array.addObject().put(TYPE, annotation.getKey().name()).put(TEXT, annotation.getValue());
+        }
+        write(key, entry);
+    }
+
+    /**
+     * @return the validation errors of the script for the given identifier, an empty list if it is valid, or
+     *         <code>null</code> if it was not validated yet
+     */
+    public synchronized List<Exception> getValidationErrors(String key, String identifier) {
+        ObjectNode entry = getEntry(key);
+        if (entry == null || !entry.has(VALIDATION) || !entry.get(VALIDATION).has(identifier)) {
+            return null;
+        }
+
+        List<Exception> errors = new ArrayList<>();
+        for (JsonNode error : entry.get(VALIDATION).get(identifier)) {
+            if ( !error.isObject()) {
+                // written without the type, validate again
+                return null;
+            }
+            errors.add(createValidationError(error.get(TYPE).asText(), error.get(TEXT).asText()));
+        }
+        return errors;
+    }
+
+    public synchronized void putValidationErrors(String key, String identifier, List<Exception> errors) {
+        ObjectNode entry = getOrCreateEntry(key);
+        ObjectNode validation = entry.has(VALIDATION) ? (ObjectNode) entry.get(VALIDATION) : entry.putObject(VALIDATION);
+        ArrayNode array = validation.putArray(identifier);
+        for (Exception error : errors) {
+            String type = error instanceof RAnnotationException ? ERROR_ANNOTATION
+                    : error instanceof OwsExceptionReport ? ERROR_OWS : ERROR_OTHER;
+            array.addObject().put(TYPE, type).put(TEXT, String.valueOf(error.getMessage()));
+        }
+        write(key, entry);
+    }
+
+    private static Exception createValidationError(String type, String message) {
+        switch (type) {
+        case ERROR_ANNOTATION:
+            return new RAnnotationException(message);
+        case ERROR_OWS:
+            return new NoApplicableCodeException().withMessage("%s", message);
+        default:
+            return new Exception(message);
+        }
+    }
+
+    /**
+     * Removes the entries of scripts that changed or were removed and leftovers of interrupted writes, so the
+     * cache directory does not grow with every change of a script.
+     *
+     * @param keys
+     *        the keys of the entries that are still in use
+     */
+    public synchronized void prune(Collection<String> keys) {
+        File[] files = directory.listFiles(f -> f.isFile()
+                && (f.getName().endsWith(SUFFIX) || f.getName().endsWith(TMP_SUFFIX)));
+        if (files == null) {
+            return;
+        }
+
+        int removed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            String key = name.substring(0, name.length() - SUFFIX.length());
+            if (name.endsWith(SUFFIX) && keys.contains(key)) {
+                continue;
+            }
+            entries.remove(key);
+            if (file.delete()) {
+                removed++;
+            }
+            else {
+                LOGGER.debug("Could not delete annotation cache file {}", file);
+            }
+        }
+        LOGGER.debug("Pruned {} files from annotation cache {}", removed, directory);
+    }
+
+    private ObjectNode getEntry(String key) {
+        ObjectNode entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        File file = new File(directory, key + SUFFIX);
+        if ( !file.isFile()) {
+            return null;
+        }
+        try {
+            entry = (ObjectNode) mapper.readTree(file);
+            entries.put(key, entry);
+            return entry;
+        }
+        catch (IOException | ClassCastException e) {
+            LOGGER.warn("Could not read annotation cache entry {}, ignoring it: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private ObjectNode getOrCreateEntry(String key) {
+        ObjectNode entry = getEntry(key);
+        if (entry == null) {
+            entry = mapper.createObjectNode();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private void write(String key, ObjectNode entry) {
+        File file = new File(directory, key + SUFFIX);
+        File tmp = new File(directory, key + "." + UUID.randomUUID().toString() + TMP_SUFFIX);
+        try {
+            mapper.writeValue(tmp, entry);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not write annotation cache entry {}: {}", file, e.getMessage());
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.debug("Could not delete {}", tmp);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RAnnotationCache [directory=" + directory + ", entries=" + entries.size() + "]";
+    }
+
+}
@@ -29,23 +29,33 @@
 package org.n52.wps.server.r.metadata;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
 import org.apache.xmlbeans.XmlOptions;
+import org.n52.javaps.description.TypedProcessDescription;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.shetland.ogc.wps.description.ProcessDescription;
 import org.n52.wps.server.r.R_Config;
@@ -58,6 +68,7 @@ import org.n52.wps.server.r.syntax.RAnnotationType;
 import org.n52.wps.server.r.syntax.RAttribute;
 import org.n52.wps.server.r.syntax.RSeperator;
 import org.n52.wps.server.r.syntax.ResourceAnnotation;
+import org.n52.wps.server.r.util.RChecksums;
 import org.n52.wps.server.r.util.ResourceUrlGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,6 +99,29 @@ public class RAnnotationParser {
     @Inject
     private ResourceUrlGenerator urlGenerator;
 
+    /** the parsed scripts by their absolute file, replaced when a file changes **/
+    private final Map<File, RParsedScript> parsedScripts = new ConcurrentHashMap<>();
+
+    /** the modification time and length of the parsed files when their content was last found unchanged **/
+    private final Map<File, FileState> fileStates = new ConcurrentHashMap<>();
+
+    private static class FileState {
+
+        private final long lastModified;
+
+        private final long length;
+
+        public FileState(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        private boolean matches(FileState other) {
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+    }
+
     public RAnnotationParser() {
         // FIXME use setting mechanism to get the base url
         LOGGER.debug("New {}", this);
@@ -138,19 +172,26 @@ public class RAnnotationParser {
         }
 
         if (annotations != null) {
-            if (annotations.isEmpty()) {
-                validationErrors.add(new RAnnotationException("No annotations found"));
-            } else {
-                // check for exactly one description
-                hasOneDescription(identifier, validationErrors, annotations);
-
-                validateMetadataAnnotations(validationErrors, annotations, identifier);
-            }
+            validateAnnotations(annotations, identifier, validationErrors, descriptionCreator::createDescribeProcessType);
         }
 
         return validationErrors;
     }
 
+    private void validateAnnotations(List<RAnnotation> annotations,
+            String identifier,
+            ArrayList<Exception> validationErrors,
+            RParsedScript.DescriptionFactory descriptionFactory) throws RAnnotationException {
+        if (annotations.isEmpty()) {
+            validationErrors.add(new RAnnotationException("No annotations found"));
+        } else {
+            // check for exactly one description
+            hasOneDescription(identifier, validationErrors, annotations, descriptionFactory);
+
+            validateMetadataAnnotations(validationErrors, annotations, identifier);
+        }
+    }
+
     @SuppressWarnings("unused")
     private void validateMetadataAnnotations(ArrayList<Exception> validationErrors,
             List<RAnnotation> annotations,
@@ -208,20 +249,28 @@ public class RAnnotationParser {
         }
     }
 
+    /**
+     * checks the number of description annotations and, if a factory is given, that a process description can
+     * be created from the annotations
+     */
     //TODO check how process description could be validated
     private void hasOneDescription(String identifier,
             ArrayList<Exception> validationErrors,
-            List<RAnnotation> annotations) throws RAnnotationException {
+            List<RAnnotation> annotations,
+            RParsedScript.DescriptionFactory descriptionFactory) throws RAnnotationException {
         List<RAnnotation> descriptions = RAnnotation.filterAnnotations(annotations, RAnnotationType.DESCRIPTION);
         if (descriptions.size() != 1) {
             validationErrors.add(new RAnnotationException("Exactly one description annotation required, but found "
                     + descriptions.size()));
         }
 
+        if (descriptionFactory == null) {
+            return;
+        }
+
         try {
             // try to create process description from annotations
-            ProcessDescription processType = descriptionCreator.createDescribeProcessType(annotations,
-                    identifier);
+            ProcessDescription processType = descriptionFactory.create(annotations, identifier);
 
             boolean valid = true;
             if (!valid) {
@@ -254,19 +303,190 @@ public class RAnnotationParser {
         return parse(inputScript, false);
     }
 
+    /**
+     * @return the annotations of the script file, see {@link #getParsedScript(File)}
+     */
+    public List<RAnnotation> parseAnnotationsfromScript(File script) throws RAnnotationException, IOException {
+        return getParsedScript(script).getAnnotations();
+    }
+
+    /**
+     * Returns the parsed script for the current version of the file. A file is only parsed again if it was
+     * changed, and unchanged files are loaded from the annotation cache if it is enabled.
+     */
+    public RParsedScript getParsedScript(File script) throws RAnnotationException, IOException {
+        File file = script.getAbsoluteFile();
+        RParsedScript parsed = parsedScripts.get(file);
+        if (parsed != null && isCurrent(parsed)) {
+            return parsed;
+        }
+
+        FileState state = new FileState(file);
+        String checksum = RChecksums.sha256(file);
+        RAnnotationCache cache = config == null ? null : config.getAnnotationCache();
+        String key = null;
+        List<Entry<RAnnotationType, String>> sources = null;
+        if (cache != null) {
+            key = cache.createKey(checksum);
+            sources = cache.getAnnotations(key);
+            if (sources != null) {
+                LOGGER.debug("Loaded {} annotations of script {} from cache", sources.size(), file);
+            }
+        }
+        if (sources == null) {
+            LOGGER.debug("Starting to parse annotations from script {}", file);
+            try (InputStream in = new FileInputStream(file)) {
+                sources = readAnnotationSources(in);
+            }
+            if (cache != null) {
+                cache.putAnnotations(key, sources);
+            }
+        }
+
+        parsed = new RParsedScript(file, checksum, key, createAnnotations(sources));
+        fileStates.put(file, state);
+        parsedScripts.put(file, parsed);
+        return parsed;
+    }
+
+    /**
+     * @return true if the script was parsed and the file did not change since, see
+     *         {@link #isCurrent(RParsedScript)}
+     */
+    public boolean isParsedScriptCurrent(File script) {
+        RParsedScript parsed = parsedScripts.get(script.getAbsoluteFile());
+        return parsed != null && isCurrent(parsed);
+    }
+
+    /**
+     * Checks if the parsed script is the latest version parsed from its file and the file was not changed
+     * since. Only the modification time and size are compared, the content is compared only if just the
+     * modification time differs, e.g. after the file was touched or checked out again.
+     */
+    public boolean isCurrent(RParsedScript parsed) {
+        File file = parsed.getFile();
+        FileState parsedState = fileStates.get(file);
+        if (parsedScripts.get(file) != parsed || parsedState == null) {
+            return false;
+        }
+
+        FileState state = new FileState(file);
+        if (state.matches(parsedState)) {
+            return true;
+        }
+        if (state.length != parsedState.length || parsed.getChecksum() == null) {
+            return false;
+        }
+
+        try {
+            if (parsed.getChecksum().equals(RChecksums.sha256(file))) {
+                fileStates.replace(file, parsedState, state);
+                return true;
+            }
+        }
+        catch (IOException e) {
+            // unreadable, so it is not the parsed script anymore
+        }
+        return false;
+    }
+
+    /**
+     * forgets the parsed script, e.g. after the file was deleted
+     */
+    public void removeParsedScript(File script) {
+        parsedScripts.remove(script.getAbsoluteFile());
+        fileStates.remove(script.getAbsoluteFile());
+    }
+
+    /**
+     * removes the annotation cache entries of scripts that are not parsed anymore, see
+     * {@link RAnnotationCache#prune(java.util.Collection)}
+     */
+    public void pruneAnnotationCache() {
+        RAnnotationCache cache = config == null ? null : config.getAnnotationCache();
+        if (cache == null) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        for (RParsedScript parsed : parsedScripts.values()) {
+            if (parsed.getCacheKey() != null) {
+                keys.add(parsed.getCacheKey());
+            }
+        }
+        cache.prune(keys);
+    }
+
+    /**
+     * @return the process description of the parsed script, which is created only once for each identifier
+     */
+    public TypedProcessDescription getProcessDescription(RParsedScript script, String identifier) throws OwsExceptionReport,
+            RAnnotationException {
+        return script.getDescription(identifier, descriptionCreator::createDescribeProcessType);
+    }
+
+    /**
+     * validates a script file, see {@link #validateScriptWithErrors(File, String)}
+     */
+    public boolean validateScript(File script, String identifier) throws RAnnotationException, IOException {
+        return validateScriptWithErrors(script, identifier).isEmpty();
+    }
+
+    /**
+     * Validates the annotations of the parsed script, which is done only once for each version of the file and
+     * identifier. The process description is not created here but on first use, see
+     * {@link #getProcessDescription(RParsedScript, String)}, so that registering many scripts stays cheap.
+     */
+    public Collection<Exception> validateScriptWithErrors(File script, String identifier) throws RAnnotationException,
+            IOException {
+        RParsedScript parsed;
+        try {
+            parsed = getParsedScript(script);
+        }
+        catch (RAnnotationException e) {
+            LOGGER.error("Error parsing annotations during validation", e);
+            return Collections.singletonList(e);
+        }
+
+        List<Exception> errors = parsed.getValidationErrors(identifier);
+        if (errors != null) {
+            return errors;
+        }
+
+        RAnnotationCache cache = config == null ? null : config.getAnnotationCache();
+        List<Exception> cached = cache == null || parsed.getCacheKey() == null ? null
+                : cache.getValidationErrors(parsed.getCacheKey(), identifier);
+        if (cached != null) {
+            LOGGER.debug("Loaded validation result of script {} from cache: {} errors", script, cached.size());
+            parsed.setValidationErrors(identifier, cached);
+            return parsed.getValidationErrors(identifier);
+        }
+
+        ArrayList<Exception> validationErrors = new ArrayList<>();
+        validateAnnotations(parsed.getAnnotations(), identifier, validationErrors, null);
+        parsed.setValidationErrors(identifier, validationErrors);
+        if (cache != null && parsed.getCacheKey() != null) {
+            cache.putValidationErrors(parsed.getCacheKey(), identifier, validationErrors);
+        }
+        return parsed.getValidationErrors(identifier);
+    }
+
     private ArrayList<RAnnotation> parse(InputStream inputScript, boolean validationOnly) throws RAnnotationException {
+        return createAnnotations(readAnnotationSources(inputScript));
+    }
+
+    /**
+     * @return the type and attribute text of each annotation in the script
+     */
+    private List<Entry<RAnnotationType, String>> readAnnotationSources(InputStream inputScript) throws RAnnotationException {
         try {
             BufferedReader lineReader = new BufferedReader(new InputStreamReader(inputScript));
-            int lineCounter = 0;
             boolean isCurrentlyParsingAnnotation = false;
             StringBuilder annotationString = null;
             RAnnotationType annotationType = null;
-            ArrayList<RAnnotation> annotations = new ArrayList<>();
-            String scriptId = null;
+            List<Entry<RAnnotationType, String>> sources = new ArrayList<>();
 
             while (lineReader.ready()) {
                 String line = lineReader.readLine();
-                lineCounter++;
 
                 if (line.trim().startsWith(ANNOTATION_CHARACTER)
                         && !line.trim().startsWith(COMMENTED_ANNOTATION_CHARACTER)) {
@@ -296,40 +516,58 @@ public class RAnnotationParser {
                             }
                         }
                     }
-                    try {
-                        if (isCurrentlyParsingAnnotation) {
-                            String endKey = RSeperator.ANNOTATION_END.getKey();
-                            if (line.contains(endKey)) {
-                                line = line.split(endKey, 2)[0];
-                                isCurrentlyParsingAnnotation = false;
-                                // last line for multiline annotation
-                            }
+                    if (isCurrentlyParsingAnnotation) {
+                        String endKey = RSeperator.ANNOTATION_END.getKey();
+                        if (line.contains(endKey)) {
+                            line = line.split(endKey, 2)[0];
+                            isCurrentlyParsingAnnotation = false;
+                            // last line for multiline annotation
+                        }
 
-                            annotationString.append(line);
-                            if (!isCurrentlyParsingAnnotation) {
-                                RAnnotation newAnnotation = null;
-                                if (annotationType.equals(RAnnotationType.RESOURCE)) {
-                                    newAnnotation = createResourceAnnotation(scriptId, annotationString.toString());
-                                } else if (annotationType.equals(RAnnotationType.IMPORT)) {
-                                    newAnnotation = createImportAnnotation(scriptId, annotationString.toString());
-                                } else {
-                                    HashMap<RAttribute, Object> attrHash = hashAttributes(annotationType,
-                                            annotationString.toString());
-                                    newAnnotation = new RAnnotation(annotationType, attrHash, dataTypeRegistry);
-                                    if (scriptId == null && annotationType.equals(RAnnotationType.DESCRIPTION)) {
-                                        scriptId = (String) newAnnotation.getObjectValue(RAttribute.IDENTIFIER);
-                                    }
-                                }
-                                LOGGER.trace("Done parsing annotation {} for script {}", newAnnotation, scriptId);
-                                annotations.add(newAnnotation);
-                            }
+                        annotationString.append(line);
+                        if (!isCurrentlyParsingAnnotation) {
+                            sources.add(new SimpleImmutableEntry<>(annotationType, annotationString.toString()));
+                        }
+                    }
+                }
+            }
+            return sources;
+
+        } catch (RuntimeException | IOException e) {
+            LOGGER.error("Error parsing annotations.", e);
+            throw new RAnnotationException("Error parsing annotations.", e);
+        }
+    }
+
+    private ArrayList<RAnnotation> createAnnotations(List<Entry<RAnnotationType, String>> sources) throws RAnnotationException {
+        try {
+            ArrayList<RAnnotation> annotations = new ArrayList<>();
+            String scriptId = null;
+
+            for (Entry<RAnnotationType, String> source : sources) {
+                RAnnotationType annotationType = source.getKey();
+                String annotationString = source.getValue();
+                try {
+                    RAnnotation newAnnotation = null;
+                    if (annotationType.equals(RAnnotationType.RESOURCE)) {
+                        newAnnotation = createResourceAnnotation(scriptId, annotationString);
+                    } else if (annotationType.equals(RAnnotationType.IMPORT)) {
+                        newAnnotation = createImportAnnotation(scriptId, annotationString);
+                    } else {
+                        HashMap<RAttribute, Object> attrHash = hashAttributes(annotationType, annotationString);
+                        newAnnotation = new RAnnotation(annotationType, attrHash, dataTypeRegistry);
+                        if (scriptId == null && annotationType.equals(RAnnotationType.DESCRIPTION)) {
+                            scriptId = (String) newAnnotation.getObjectValue(RAttribute.IDENTIFIER);
                         }
-                    } catch (RAnnotationException e) {
-                        LOGGER.error("Invalid R script with wrong annotation in Line {}: {}",
-                                lineCounter,
-                                e.getMessage());
-                        throw e;
                     }
+                    LOGGER.trace("Done parsing annotation {} for script {}", newAnnotation, scriptId);
+                    annotations.add(newAnnotation);
+                } catch (RAnnotationException e) {
+                    LOGGER.error("Invalid R script with wrong annotation '{} {}': {}",
+                            annotationType.getStartKey(),
+                            annotationString,
+                            e.getMessage());
+                    throw e;
                 }
             }
 
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.metadata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.n52.javaps.description.TypedProcessDescription;
+import org.n52.javaps.io.Data;
+import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
+import org.n52.wps.server.r.data.RTypeDefinition;
+import org.n52.wps.server.r.syntax.RAnnotation;
+import org.n52.wps.server.r.syntax.RAnnotationException;
+import org.n52.wps.server.r.syntax.RAnnotationType;
+import org.n52.wps.server.r.syntax.RAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The annotations of one version of a script file, parsed once and shared by the script registration, the
+ * validation and the process. The process description and the validation result are created on first use
+ * and kept with the parsed script.
+ *
+ * The annotations are indexed by type, and inputs and outputs by their identifier together with their
+ * resolved data type, so that executions do not have to search the annotations.
+ *
+ * Whether the file still has the parsed content is tracked by {@link RAnnotationParser}.
+ */
+public final class RParsedScript {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(RParsedScript.class);
+
+    /**
+     * creates the process description for the annotations of a script
+     */
+    @FunctionalInterface
+    public interface DescriptionFactory {
+
+        TypedProcessDescription create(List<RAnnotation> annotations, String identifier) throws OwsExceptionReport,
+                RAnnotationException;
+
+    }
+
+    private final File file;
+
+    private final String checksum;
+
+    private final String cacheKey;
+
+    private final List<RAnnotation> annotations;
+
+    private final Map<RAnnotationType, List<RAnnotation>> annotationsByType;
+
+    private final Map<RAnnotationType, Map<String, RAnnotation>> annotationsById;
+
+    private final Map<RAnnotationType, Map<String, RTypeDefinition>> dataTypesById;
+
+    private final Map<String, TypedProcessDescription> descriptions = new ConcurrentHashMap<>();
+
+    private final Map<String, List<Exception>> validationErrors = new ConcurrentHashMap<>();
+
+    /**
+     * @param checksum
+     *        the checksum of the file content when it was read
+     * @param cacheKey
+     *        the key of the script in the annotation cache, or <code>null</code> if the cache is disabled
+     */
+    public RParsedScript(File file, String checksum, String cacheKey, List<RAnnotation> annotations) throws RAnnotationException {
+        this.file = file;
+        this.checksum = checksum;
+        this.cacheKey = cacheKey;
+        this.annotations = Collections.unmodifiableList(new ArrayList<>(annotations));
+
+        Map<RAnnotationType, List<RAnnotation>> byType = new EnumMap<>(RAnnotationType.class);
+        for (RAnnotationType type : RAnnotationType.values()) {
+            byType.put(type, new ArrayList<>());
+        }
+        for (RAnnotation annotation : annotations) {
+            byType.get(annotation.getType()).add(annotation);
+        }
+        for (RAnnotationType type : RAnnotationType.values()) {
+            byType.put(type, Collections.unmodifiableList(byType.get(type)));
+        }
+        this.annotationsByType = Collections.unmodifiableMap(byType);
+
+        Map<RAnnotationType, Map<String, RAnnotation>> byId = new EnumMap<>(RAnnotationType.class);
+        Map<RAnnotationType, Map<String, RTypeDefinition>> dataTypes = new EnumMap<>(RAnnotationType.class);
+        for (RAnnotationType type : new RAnnotationType[] {RAnnotationType.INPUT, RAnnotationType.OUTPUT}) {
+            // identifiers are matched ignoring case like in RAnnotation.filterAnnotations(..)
+            Map<String, RAnnotation> annotationsOfType = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            Map<String, RTypeDefinition> dataTypesOfType = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (RAnnotation annotation : byType.get(type)) {
+                String identifier = annotation.getStringValue(RAttribute.IDENTIFIER);
+                if (identifier == null) {
+                    continue;
+                }
+                if (annotationsOfType.containsKey(identifier)) {
+                    LOGGER.warn("Script {} contains more than one annotation of type {} for id '{}', using the first one.",
+                                file,
+                                type,
+                                identifier);
+                    continue;
+                }
+
+                annotationsOfType.put(identifier, annotation);
+                try {
+                    dataTypesOfType.put(identifier, annotation.getRDataType());
+                }
+                catch (RAnnotationException e) {
+                    LOGGER.debug("Unsupported data type in {}: {}", annotation, e.getMessage());
+                }
+            }
+            byId.put(type, Collections.unmodifiableMap(annotationsOfType));
+            dataTypes.put(type, Collections.unmodifiableMap(dataTypesOfType));
+        }
+        this.annotationsById = Collections.unmodifiableMap(byId);
+        this.dataTypesById = Collections.unmodifiableMap(dataTypes);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public List<RAnnotation> getAnnotations() {
+        return annotations;
+    }
+
+    public List<RAnnotation> getAnnotations(RAnnotationType type) {
+        return annotationsByType.get(type);
+    }
+
+    /**
+     * @param type
+     *        {@link RAnnotationType#INPUT} or {@link RAnnotationType#OUTPUT}
+     * @return the first annotation of the input or output with the given identifier, or <code>null</code> if
+     *         there is none
+     */
+    public RAnnotation getAnnotation(RAnnotationType type, String identifier) {
+        Map<String, RAnnotation> annotationsOfType = annotationsById.get(type);
+        return annotationsOfType == null || identifier == null ? null : annotationsOfType.get(identifier);
+    }
+
+    /**
+     * @return the data type of the input or output with the given identifier, or <code>null</code> if there is
+     *         no such annotation or its type is not supported
+     */
+    public RTypeDefinition getDataType(RAnnotationType type, String identifier) {
+        Map<String, RTypeDefinition> dataTypesOfType = dataTypesById.get(type);
+        return dataTypesOfType == null || identifier == null ? null : dataTypesOfType.get(identifier);
+    }
+
+    public Class< ? extends Data< ? >> getDataClass(RAnnotationType type, String identifier) {
+        RTypeDefinition dataType = getDataType(type, identifier);
+        return dataType == null ? null : dataType.getIDataClass();
+    }
+
+    public String getMimeType(RAnnotationType type, String identifier) {
+        RTypeDefinition dataType = getDataType(type, identifier);
+        return dataType == null ? null : dataType.getMimeType();
+    }
+
+    /**
+     * @return the first description annotation, or <code>null</code> if there is none
+     */
+    public RAnnotation getDescriptionAnnotation() {
+        List<RAnnotation> descriptionAnnotations = getAnnotations(RAnnotationType.DESCRIPTION);
+        return descriptionAnnotations.isEmpty() ? null : descriptionAnnotations.get(0);
+    }
+
+    /**
+     * @return the process description for the given identifier, created with the factory on first use
+     */
+    public TypedProcessDescription getDescription(String identifier, DescriptionFactory factory) throws OwsExceptionReport,
+            RAnnotationException {
+        TypedProcessDescription description = descriptions.get(identifier);
+        if (description == null) {
+            description = factory.create(annotations, identifier);
+            TypedProcessDescription existing = descriptions.putIfAbsent(identifier, description);
+            if (existing != null) {
+                description = existing;
+            }
+        }
+        return description;
+    }
+
+    /**
+     * @return the validation errors for the given identifier, or <code>null</code> if the script was not
+     *         validated for it yet
+     */
+    public List<Exception> getValidationErrors(String identifier) {
+        return validationErrors.get(identifier);
+    }
+
+    public void setValidationErrors(String identifier, List<Exception> errors) {
+        validationErrors.put(identifier, Collections.unmodifiableList(new ArrayList<>(errors)));
+    }
+
+    @Override
+    public String toString() {
+        return "RParsedScript [file=" + file + ", checksum=" + checksum + ", annotations=" + annotations.size()
+                + "]";
+    }
+
+}
@@ -60,7 +60,9 @@ public enum RAnnotationType {
                               RAttribute.TITLE,
                               RAttribute.VERSION,
                               RAttribute.ABSTRACT,
-                              RAttribute.AUTHOR)),
+                              RAttribute.AUTHOR,
+                              RAttribute.TIMEOUT,
+                              RAttribute.DETERMINISTIC)),
 
     RESOURCE(Arrays.asList(RAttribute.RESOURCE_START, RAttribute.NAMED_LIST)),
 
@@ -141,6 +143,26 @@ public enum RAnnotationType {
             throw new RAnnotationException("Syntax Error in Annotation " + this + " (" + this.startKey + " ...), "
                     + "unable to parse Integer value from attribute " + RAttribute.MAX_OCCURS.getKey());
         }
+
+        // check timeout Attribute:
+        try {
+            if (rAnnotation.containsKey(RAttribute.TIMEOUT)) {
+                Long.parseLong(rAnnotation.getStringValue(RAttribute.TIMEOUT).trim());
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new RAnnotationException("Syntax Error in Annotation " + this + " (" + this.startKey + " ...), "
+                    + "unable to parse Integer value from attribute " + RAttribute.TIMEOUT.getKey());
+        }
+
+        // check deterministic Attribute:
+        if (rAnnotation.containsKey(RAttribute.DETERMINISTIC)) {
+            String deterministic = rAnnotation.getStringValue(RAttribute.DETERMINISTIC).trim();
+            if ( !"true".equalsIgnoreCase(deterministic) && !"false".equalsIgnoreCase(deterministic)) {
+                throw new RAnnotationException("Syntax Error in Annotation " + this + " (" + this.startKey + " ...), "
+                        + "unable to parse Boolean value from attribute " + RAttribute.DETERMINISTIC.getKey());
+            }
+        }
     }
 
     @Override
@@ -49,7 +49,11 @@ public enum RAttribute {
     // imports:
     IMPORT_START("wps.import", null, false),
     // metadata links:
-    HREF("href", null, true), METADATA_START("wps.metadata", null, false);
+    HREF("href", null, true), METADATA_START("wps.metadata", null, false),
+    // maximum execution time in seconds:
+    TIMEOUT("timeout", null, false),
+    // results only depend on script and inputs and may be cached:
+    DETERMINISTIC("deterministic", false, false);
 
     private String key;
 
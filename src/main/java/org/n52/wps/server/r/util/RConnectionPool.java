@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.n52.wps.server.r.FilteredRConnection;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.Rserve.RserveException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of Rserve connections. Connections are validated when they are borrowed and the R session
+ * is reset when they are returned, so that every execution starts like in a new session: with an empty global
+ * environment (which also removes <code>.Random.seed</code>) in the original working directory, with the
+ * attached packages and options the session had after it was created, and without open sinks or graphics
+ * devices. A connection whose session cannot be restored is discarded.
+ */
+public class RConnectionPool {
+
+    public static interface RConnectionFactory {
+
+        public abstract FilteredRConnection createConnection() throws RserveException;
+
+    }
+
+    /**
+     * Loads everything into a new session that does not depend on a specific execution. Preparation must
+     * keep its results out of the global environment, because that is cleared when a connection is returned.
+     */
+    public static interface RSessionPreparer {
+
+        public abstract void prepare(FilteredRConnection connection) throws RserveException;
+
+    }
+
+    private static class PooledConnection {
+
+        private final FilteredRConnection connection;
+
+        private final String initialWorkDir;
+
+        private final String[] initialSearchPath;
+
+        private final byte[] initialOptions;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        public PooledConnection(FilteredRConnection connection,
+                                String initialWorkDir,
+                                String[] initialSearchPath,
+                                byte[] initialOptions) {
+            this.connection = connection;
+            this.initialWorkDir = initialWorkDir;
+            this.initialSearchPath = initialSearchPath;
+            this.initialOptions = initialOptions;
+        }
+
+    }
+
+    private static final String VALIDATION_COMMAND = "TRUE";
+
+    private static final String RESET_COMMAND = "rm(list = ls(all.names = TRUE, envir = .GlobalEnv), envir = .GlobalEnv)";
+
+    private static final String SEARCH_PATH_VARIABLE = ".wps4r.search";
+
+    private static final String OPTIONS_VARIABLE = ".wps4r.options";
+
+    /**
+     * closes sinks and devices, detaches packages attached by the script and restores the options of the new
+     * session; evaluates to 1 if the search path is the one of the new session again
+     */
+    private static final String RESTORE_COMMAND = "as.integer(tryCatch(local({\n"
+            + "  while (sink.number() > 0) sink()\n"
+            + "  graphics.off()\n"
+            + "  for (name in setdiff(search(), " + SEARCH_PATH_VARIABLE + ")) detach(name, character.only = TRUE)\n"
+            + "  saved <- unserialize(" + OPTIONS_VARIABLE + ")\n"
+            + "  added <- setdiff(names(options()), names(saved))\n"
+            + "  options(saved)\n"
+            + "  if (length(added) > 0) options(sapply(added, function(n) NULL, simplify = FALSE))\n"
+            + "  identical(search(), " + SEARCH_PATH_VARIABLE + ")\n"
+            + "}), error = function(e) FALSE))";
+
+    private static final String SEARCH_PATH_COMMAND = "search()";
+
+    private static final String OPTIONS_COMMAND = "serialize(options(), NULL)";
+
+    private static Logger log = LoggerFactory.getLogger(RConnectionPool.class);
+
+    private final RConnectionFactory factory;
+
+    private final RSessionPreparer preparer;
+
+    private final int minSize;
+
+    private final int minIdle;
+
+    private final int maxSize;
+
+    private final long borrowTimeout;
+
+    private final long idleTimeout;
+
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    private final Map<FilteredRConnection, PooledConnection> borrowed = new ConcurrentHashMap<>();
+
+    private final Semaphore permits;
+
+    private final ScheduledExecutorService maintenance;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param factory
+     *        creates new, logged in connections
+     * @param minSize
+     *        number of connections that are kept open even if they are not used
+     * @param maxSize
+     *        maximum number of connections that can be borrowed at the same time
+     * @param borrowTimeout
+     *        milliseconds to wait for a free connection
+     * @param idleTimeout
+     *        milliseconds after which unused connections above the minimum size are closed
+     */
+    public RConnectionPool(RConnectionFactory factory, int minSize, int maxSize, long borrowTimeout, long idleTimeout) {
+        this(factory, null, 0, minSize, maxSize, borrowTimeout, idleTimeout);
+    }
+
+    /**
+     * @param preparer
+     *        prepares new sessions, may be <code>null</code>
+     * @param minIdle
+     *        number of prepared sessions that are kept ready in the background
+     */
+    public RConnectionPool(RConnectionFactory factory,
+                           RSessionPreparer preparer,
+                           int minIdle,
+                           int minSize,
+                           int maxSize,
+                           long borrowTimeout,
+                           long idleTimeout) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size must be at least 1, but is " + maxSize);
+        }
+        this.factory = factory;
+        this.preparer = preparer;
+        this.maxSize = maxSize;
+        this.minSize = Math.min(Math.max(minSize, 0), maxSize);
+        this.minIdle = Math.min(Math.max(minIdle, 0), maxSize);
+        this.borrowTimeout = borrowTimeout;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WPS4R-connection-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(idleTimeout / 2, 1000l);
+        this.maintenance.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.MILLISECONDS);
+
+        log.info("NEW {}", this);
+    }
+
+    /**
+     * @return a validated connection, which must be handed back with {@link #release(FilteredRConnection)} or
+     *         {@link #invalidate(FilteredRConnection)}
+     * @throws RserveException
+     *         if no connection could be created or none became available within the borrow timeout
+     */
+    public FilteredRConnection borrow() throws RserveException {
+        return borrow(borrowTimeout);
+    }
+
+    /**
+     * @param timeout
+     *        milliseconds to wait for a free connection, 0 to only take a connection that is free right away
+     * @see #borrow()
+     */
+    public FilteredRConnection borrow(long timeout) throws RserveException {
+        if (closed) {
+            throw new RserveException(null, "Connection pool is closed.");
+        }
+
+        try {
+            if ( !permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new RserveException(null, "Timeout waiting " + timeout
+                        + "ms for a free R connection, all " + maxSize + " connections are in use.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RserveException(null, "Interrupted while waiting for a free R connection.");
+        }
+
+        try {
+            PooledConnection pooled = idle.pollFirst();
+            while (pooled != null && !isValid(pooled)) {
+                destroy(pooled);
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                pooled = create();
+            }
+
+            borrowed.put(pooled.connection, pooled);
+            log.trace("Borrowed connection {}, {} in use, {} idle", pooled.connection, borrowed.size(), idle.size());
+
+            if (minIdle > 0) {
+                // replace the session that was just handed out with a prepared one
+                maintenance.execute(this::maintain);
+            }
+            return pooled.connection;
+        }
+        catch (RserveException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Resets the session of the connection and puts it back into the pool.
+     */
+    public void release(FilteredRConnection connection) {
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) {
+            log.warn("Connection {} does not belong to this pool, closing it.", connection);
+            connection.close();
+            return;
+        }
+
+        try {
+            if ( !closed && reset(pooled)) {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+            else {
+                destroy(pooled);
+            }
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the connection instead of returning it to the pool, e.g. after a connection error.
+     */
+    public void invalidate(FilteredRConnection connection) {
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) {
+            connection.close();
+            return;
+        }
+
+        try {
+            destroy(pooled);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        log.info("Closing {}", this);
+        this.closed = true;
+        this.maintenance.shutdownNow();
+
+        PooledConnection pooled = idle.pollFirst();
+        while (pooled != null) {
+            destroy(pooled);
+            pooled = idle.pollFirst();
+        }
+        // borrowed connections are closed when they are released
+    }
+
+    private PooledConnection create() throws RserveException {
+        FilteredRConnection connection = factory.createConnection();
+        try {
+            String workDir = connection.eval("getwd()").asString();
+            if (preparer != null) {
+                long start = System.currentTimeMillis();
+                preparer.prepare(connection);
+                log.debug("Prepared session for {} in {}ms", connection, System.currentTimeMillis() - start);
+            }
+            // the state a returned session is restored to
+            String[] searchPath = connection.eval(SEARCH_PATH_COMMAND).asStrings();
+            byte[] options = connection.eval(OPTIONS_COMMAND).asBytes();
+            return new PooledConnection(connection, workDir, searchPath, options);
+        }
+        catch (REXPMismatchException e) {
+            connection.close();
+            throw new RserveException(connection, "Could not determine the initial state of new connection: "
+                    + e.getMessage());
+        }
+        catch (RserveException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        if ( !pooled.connection.isConnected()) {
+            return false;
+        }
+        try {
+            pooled.connection.voidEval(VALIDATION_COMMAND);
+            return true;
+        }
+        catch (RserveException e) {
+            log.debug("Validation of pooled connection {} failed: {}", pooled.connection, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean reset(PooledConnection pooled) {
+        if ( !pooled.connection.isConnected()) {
+            return false;
+        }
+        try {
+            pooled.connection.voidEval("setwd(\"" + pooled.initialWorkDir.replace("\\", "/") + "\")");
+            pooled.connection.assign(SEARCH_PATH_VARIABLE, new REXPString(pooled.initialSearchPath));
+            pooled.connection.assign(OPTIONS_VARIABLE, new REXPRaw(pooled.initialOptions));
+            int restored = pooled.connection.eval(RESTORE_COMMAND).asInteger();
+            pooled.connection.voidEval(RESET_COMMAND);
+            if (restored != 1) {
+                log.info("Could not restore the session of connection {}, discarding it", pooled.connection);
+                return false;
+            }
+            return true;
+        }
+        catch (RserveException | REXPMismatchException e) {
+            log.warn("Could not reset connection {}, discarding it: {}", pooled.connection, e.getMessage());
+            return false;
+        }
+    }
+
+    private void destroy(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        }
+        catch (RuntimeException e) {
+            log.debug("Error closing pooled connection {}", pooled.connection, e);
+        }
+    }
+
+    /**
+     * evicts connections that were idle for too long and tops up the pool to its minimum size and the
+     * number of prepared sessions
+     */
+    private void maintain() {
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && idle.size() > minIdle && idle.size() + borrowed.size() > minSize) {
+                PooledConnection pooled = it.next();
+                if (now - pooled.lastUsed > idleTimeout && idle.remove(pooled)) {
+                    log.debug("Evicting idle connection {}", pooled.connection);
+                    destroy(pooled);
+                }
+            }
+
+            while ( !closed && isBelowMinimum() && idle.size() + borrowed.size() < maxSize) {
+                idle.offerLast(create());
+            }
+        }
+        catch (RserveException | RuntimeException e) {
+            log.warn("Error maintaining connection pool: {}", e.getMessage());
+        }
+    }
+
+    private boolean isBelowMinimum() {
+        return idle.size() + borrowed.size() < minSize || idle.size() < minIdle;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("RConnectionPool [minSize=").append(minSize);
+        builder.append(", minIdle=").append(minIdle);
+        builder.append(", maxSize=").append(maxSize);
+        builder.append(", borrowTimeout=").append(borrowTimeout);
+        builder.append(", idleTimeout=").append(idleTimeout);
+        builder.append(", idle=").append(idle.size());
+        builder.append(", borrowed=").append(borrowed.size());
+        builder.append(", closed=").append(closed);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -29,7 +29,21 @@
 package org.n52.wps.server.r.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.n52.wps.server.r.FilteredRConnection;
 import org.rosuda.REngine.REXP;
@@ -38,20 +52,372 @@ import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Opens connections to Rserve and, if several Rserve instances are configured, distributes executions
+ * between their connection pools. Hosts that cannot be connected to are ejected and retried later.
+ */
 public class RConnector {
 
+    public enum Routing {
+        /** prefer the endpoint with the fewest borrowed connections relative to its weight */
+        LEAST_OUTSTANDING,
+        /** like {@link #LEAST_OUTSTANDING}, but also consider the round-trip time of an evaluation */
+        LATENCY
+    }
+
     private static final long START_ATTEMPT_SLEEP = 1000l;
 
     private static final int START_ATTEMP_COUNT = 5;
 
+    private static final String ROUND_TRIP_COMMAND = "TRUE";
+
     private static Logger log = LoggerFactory.getLogger(RConnector.class);
 
     private RStarter starter;
 
+    private final List<RServeEndpoint> endpoints = new CopyOnWriteArrayList<>();
+
+    private final Map<RServeEndpoint, RConnectionPool> pools = new ConcurrentHashMap<>();
+
+    private final Map<FilteredRConnection, RServeEndpoint> borrowed = new ConcurrentHashMap<>();
+
+    private final Map<RServeEndpoint, RConnectionPool.RConnectionFactory> factories = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService watchdog;
+
+    /** runs the tasks of the watchdog, which can block while they kill an R process on a slow host */
+    private ExecutorService watchdogTasks;
+
+    private Routing routing = Routing.LEAST_OUTSTANDING;
+
+    private long retryBackoff = 5000l;
+
+    private long borrowTimeout = 30000l;
+
     public RConnector(RStarter starter) {
         this.starter = starter;
     }
 
+    public void setRouting(Routing routing) {
+        this.routing = routing;
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * @param borrowTimeout
+     *        milliseconds to wait for a free connection across all endpoints
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public void addEndpoint(RServeEndpoint endpoint, RConnectionPool pool) {
+        this.pools.put(endpoint, pool);
+        this.endpoints.add(endpoint);
+        log.info("Added {} with {}", endpoint, pool);
+    }
+
+    public boolean hasEndpoints() {
+        return !this.endpoints.isEmpty();
+    }
+
+    public List<RServeEndpoint> getEndpoints() {
+        return Collections.unmodifiableList(this.endpoints);
+    }
+
+    /**
+     * @return a factory for connections to the given endpoint, which ejects the endpoint if it cannot be
+     *         reached
+     */
+    public RConnectionPool.RConnectionFactory createConnectionFactory(RServeEndpoint endpoint,
+                                                                      boolean enableBatchStart,
+                                                                      String user,
+                                                                      String password) {
+        // only a local Rserve can be started by us
+        boolean batchStart = enableBatchStart && endpoint.isLocalhost();
+        RConnectionPool.RConnectionFactory factory = () -> {
+            try {
+                FilteredRConnection connection = getNewConnection(batchStart,
+                                                                  endpoint.getHost(),
+                                                                  endpoint.getPort(),
+                                                                  user,
+                                                                  password);
+                endpoint.markSuccess();
+                return connection;
+            }
+            catch (RserveException e) {
+                endpoint.markFailure(this.retryBackoff);
+                log.warn("Could not connect to {}, ejecting it: {}", endpoint, e.getMessage());
+                throw e;
+            }
+        };
+        this.factories.put(endpoint, factory);
+        return factory;
+    }
+
+    /**
+     * @return a connection from the pool of the least loaded available endpoint that has one free right away;
+     *         if none has, the endpoints are tried in the same order again until the borrow timeout is used up
+     *         in total
+     */
+    public FilteredRConnection borrowConnection() throws RserveException {
+        List<RServeEndpoint> candidates = getCandidates();
+        if (candidates.isEmpty()) {
+            throw new RserveException(null, "No Rserve endpoint configured.");
+        }
+
+        RserveException lastException = null;
+        for (RServeEndpoint endpoint : candidates) {
+            try {
+                return borrowConnection(endpoint, 0);
+            }
+            catch (RserveException e) {
+                log.debug("No free connection from {}: {}", endpoint, e.getMessage());
+                lastException = e;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + this.borrowTimeout;
+        for (RServeEndpoint endpoint : candidates) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            if ( !endpoint.isAvailable() && candidates.size() > 1) {
+                // ejected in the first round
+                continue;
+            }
+            try {
+                return borrowConnection(endpoint, remaining);
+            }
+            catch (RserveException e) {
+                log.debug("Could not borrow connection from {}: {}", endpoint, e.getMessage());
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    private FilteredRConnection borrowConnection(RServeEndpoint endpoint, long timeout) throws RserveException {
+        RConnectionPool pool = this.pools.get(endpoint);
+        FilteredRConnection connection = pool.borrow(timeout);
+        // failed attempts, e.g. the probes without waiting, are not counted as requests
+        endpoint.started();
+        this.borrowed.put(connection, endpoint);
+
+        if (this.routing == Routing.LATENCY) {
+            try {
+                endpoint.recordLatency(measureRoundTrip(connection));
+            }
+            catch (RserveException e) {
+                invalidateConnection(connection);
+                throw e;
+            }
+        }
+        log.debug("Borrowed connection from {}", endpoint);
+        return connection;
+    }
+
+    /**
+     * @return the milliseconds an evaluation takes from sending it to Rserve to receiving the result
+     */
+    private static double measureRoundTrip(FilteredRConnection connection) throws RserveException {
+        long start = System.nanoTime();
+        connection.voidEval(ROUND_TRIP_COMMAND);
+        return (System.nanoTime() - start) / 1000000d;
+    }
+
+    public void releaseConnection(FilteredRConnection connection) {
+        RServeEndpoint endpoint = this.borrowed.remove(connection);
+        if (endpoint == null) {
+            log.warn("Connection {} was not borrowed, closing it", connection);
+            connection.close();
+            return;
+        }
+        endpoint.finished();
+        this.pools.get(endpoint).release(connection);
+    }
+
+    public void invalidateConnection(FilteredRConnection connection) {
+        RServeEndpoint endpoint = this.borrowed.remove(connection);
+        if (endpoint == null) {
+            connection.close();
+            return;
+        }
+        endpoint.finished();
+        this.pools.get(endpoint).invalidate(connection);
+    }
+
+    /**
+     * Kills the R process serving the given borrowed connection, which makes a blocking evaluation on it
+     * return with an exception. A separate connection to the same endpoint is used to send the signal because
+     * the connection itself is busy. The connection must be invalidated afterwards.
+     *
+     * @param rWorkDirectory
+     *        the working directory of the killed session, which is deleted if not <code>null</code>
+     * @return true if the R process was killed
+     */
+    public boolean terminate(FilteredRConnection connection, String rWorkDirectory) {
+        RServeEndpoint endpoint = this.borrowed.get(connection);
+        int pid = connection.getServerPid();
+        if (endpoint == null || pid <= 0) {
+            log.warn("Cannot terminate R process of {} (pid {}), closing the connection", connection, pid);
+            connection.close();
+            return false;
+        }
+
+        FilteredRConnection control = null;
+        try {
+            control = this.factories.get(endpoint).createConnection();
+            control.voidEval("tools::pskill(" + pid + ", tools::SIGKILL)");
+            log.info("Killed R process {} on {}", pid, endpoint);
+
+            if (rWorkDirectory != null) {
+                control.voidEval("unlink(\"" + rWorkDirectory.replace("\\", "/") + "\", recursive = TRUE)");
+                log.debug("Deleted work directory {} of killed R process {}", rWorkDirectory, pid);
+            }
+            return true;
+        }
+        catch (RserveException e) {
+            log.warn("Could not kill R process {} on {}, closing the connection instead: {}",
+                     pid,
+                     endpoint,
+                     e.getMessage());
+            connection.close();
+            return false;
+        }
+        finally {
+            if (control != null) {
+                control.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the task after the delay unless the returned future is cancelled before, e.g. to terminate
+     * executions that take too long. The task runs on its own thread, so a blocking task does not delay the
+     * tasks of other executions.
+     */
+    public synchronized ScheduledFuture< ? > scheduleWatchdog(Runnable task, long delayMillis) {
+        ExecutorService tasks = getWatchdogTasks();
+        return getWatchdog().schedule(() -> dispatch(tasks, task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the task repeatedly until the returned future is cancelled, e.g. to check whether an execution
+     * was cancelled. Like for {@link #scheduleWatchdog(Runnable, long)}, the task runs on its own thread.
+     */
+    public synchronized ScheduledFuture< ? > scheduleMonitor(Runnable task, long periodMillis) {
+        ExecutorService tasks = getWatchdogTasks();
+        return getWatchdog().scheduleWithFixedDelay(() -> dispatch(tasks, task),
+                                                    periodMillis,
+                                                    periodMillis,
+                                                    TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs the counters of all endpoints, i.e. borrowed connections, requests, failures and latency, with the
+     * given period until the connector is shut down.
+     */
+    public synchronized ScheduledFuture< ? > scheduleStatisticsLog(long periodMillis) {
+        return getWatchdog().scheduleWithFixedDelay(this::logStatistics,
+                                                    periodMillis,
+                                                    periodMillis,
+                                                    TimeUnit.MILLISECONDS);
+    }
+
+    private void logStatistics() {
+        for (RServeEndpoint endpoint : this.endpoints) {
+            log.info("Rserve statistics: {}", endpoint);
+        }
+    }
+
+    private static void dispatch(ExecutorService tasks, Runnable task) {
+        try {
+            tasks.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Watchdog task not run, the connector was shut down: {}", e.getMessage());
+        }
+    }
+
+    private ScheduledExecutorService getWatchdog() {
+        if (this.watchdog == null) {
+            this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "WPS4R-execution-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return this.watchdog;
+    }
+
+    private ExecutorService getWatchdogTasks() {
+        if (this.watchdogTasks == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.watchdogTasks = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "WPS4R-execution-watchdog-task-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return this.watchdogTasks;
+    }
+
+    /**
+     * available endpoints ordered by load; if all endpoints are ejected, the one that is due to be retried
+     * first
+     */
+    private List<RServeEndpoint> getCandidates() {
+        List<RServeEndpoint> candidates = new ArrayList<>();
+        for (RServeEndpoint endpoint : this.endpoints) {
+            if (endpoint.isAvailable()) {
+                candidates.add(endpoint);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            this.endpoints.stream().min(Comparator.comparingLong(RServeEndpoint::getEjectedUntil)).ifPresent(candidates::add);
+            log.debug("All endpoints are ejected, retrying {}", candidates);
+            return candidates;
+        }
+
+        if (this.routing == Routing.LATENCY) {
+            candidates.sort(Comparator.comparingDouble(RServeEndpoint::getLatencyWeightedLoad));
+        }
+        else {
+            candidates.sort(Comparator.comparingDouble(RServeEndpoint::getLoad));
+        }
+        return candidates;
+    }
+
+    public synchronized void shutdown() {
+        if (this.watchdog != null) {
+            this.watchdog.shutdownNow();
+            this.watchdog = null;
+        }
+        if (this.watchdogTasks != null) {
+            this.watchdogTasks.shutdownNow();
+            this.watchdogTasks = null;
+        }
+        for (RServeEndpoint endpoint : this.endpoints) {
+            log.info("Closing pool of {}", endpoint);
+            this.pools.get(endpoint).close();
+        }
+        this.endpoints.clear();
+        this.pools.clear();
+        this.borrowed.clear();
+        this.factories.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "RConnector [routing=" + this.routing + ", endpoints=" + this.endpoints + "]";
+    }
+
     public FilteredRConnection getNewConnection(boolean enableBatchStart,
                                                 String host,
                                                 int port,
@@ -72,6 +438,8 @@ public class RConnector {
         REXP info = con.eval("capture.output(sessionInfo())");
         try {
             log.debug("NEW CONNECTION >>> sessionInfo:\n{}", Arrays.deepToString(info.asStrings()));
+            // required to terminate the session, see terminate(..)
+            con.setServerPid(con.eval("Sys.getpid()").asInteger());
         }
         catch (REXPMismatchException e) {
             log.warn("Error creating session info.", e);
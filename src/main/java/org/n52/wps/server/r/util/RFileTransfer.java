@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.n52.wps.server.r.FilteredRConnection;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RFileInputStream;
+import org.rosuda.REngine.Rserve.RFileOutputStream;
+import org.rosuda.REngine.Rserve.RserveException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams files between the WPS and the working directory of Rserve, which may be on a remote host. All
+ * transfers share a pool of chunk buffers and report their throughput.
+ *
+ * Text-like files can be transferred gzipped. R decompresses uploads on arrival and compresses files
+ * before they are downloaded, using only base R functions.
+ */
+public class RFileTransfer {
+
+    public enum Compression {
+        /** never compress transfers */
+        NEVER,
+        /** compress text-like files for remote Rserve instances */
+        AUTO,
+        /** compress all transfers */
+        ALWAYS
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /** copies the file given first to the file given second, reading and writing with the given connections */
+    private static final String R_COPY = "local({ i <- %s(\"%s\", \"rb\"); o <- %s(\"%s\", \"wb\"); "
+            + "repeat { b <- readBin(i, \"raw\", 1048576L); if (length(b) == 0L) break; writeBin(b, o) }; "
+            + "close(i); close(o) })";
+
+    private static final String R_REMOVE = "invisible(file.remove(\"%s\"))";
+
+    /**
+     * text-like formats, binary formats such as TIFF are often compressed already and gzipping them only costs
+     * time on both sides
+     */
+    private static final Set<String> COMPRESSIBLE_MIME_TYPES = new HashSet<>(Arrays.asList("application/json",
+                                                                                            "application/dbase",
+                                                                                            "application/x-dbase",
+                                                                                            "application/rnw",
+                                                                                            "application/sty"));
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList("txt",
+                                                                                           "csv",
+                                                                                           "xml",
+                                                                                           "gml",
+                                                                                           "kml",
+                                                                                           "json",
+                                                                                           "geojson",
+                                                                                           "asc",
+                                                                                           "dbf",
+                                                                                           "r",
+                                                                                           "rnw",
+                                                                                           "sty",
+                                                                                           "svg"));
+
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    private static Logger log = LoggerFactory.getLogger(RFileTransfer.class);
+
+    private final int chunkSize;
+
+    private final Compression compression;
+
+    private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    public RFileTransfer() {
+        this(DEFAULT_CHUNK_SIZE, Compression.NEVER);
+    }
+
+    public RFileTransfer(int chunkSize, Compression compression) {
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+        this.compression = compression;
+    }
+
+    /**
+     * @param mimeType
+     *        the mime type of the file, may be <code>null</code> if unknown
+     * @param fileName
+     *        the name of the file, used if the mime type is unknown
+     * @return true if the file should be transferred compressed over the given connection
+     */
+    public boolean isCompressed(RConnection connection, String mimeType, String fileName) {
+        switch (compression) {
+        case ALWAYS:
+            return true;
+        case AUTO:
+            return isRemote(connection) && isCompressible(mimeType, fileName);
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isRemote(RConnection connection) {
+        if ( !(connection instanceof FilteredRConnection)) {
+            return false;
+        }
+        String host = ((FilteredRConnection) connection).getServerHost();
+        return !("localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host));
+    }
+
+    private static boolean isCompressible(String mimeType, String fileName) {
+        if (mimeType != null) {
+            String type = mimeType.toLowerCase();
+            return type.startsWith("text/") || type.endsWith("xml") || type.endsWith("+json")
+                    || COMPRESSIBLE_MIME_TYPES.contains(type);
+        }
+        if (fileName != null) {
+            int dot = fileName.lastIndexOf('.');
+            return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase());
+        }
+        return false;
+    }
+
+    /**
+     * writes the stream to a file in the working directory of the connection, gzipped on the wire if
+     * <code>compress</code> is set, and closes the stream
+     *
+     * @return the number of uncompressed bytes
+     */
+    public long upload(InputStream in, RConnection connection, String fileName, boolean compress) throws IOException {
+        if ( !compress) {
+            return upload(in, connection, fileName);
+        }
+
+        String compressedName = fileName + GZIP_SUFFIX;
+        long bytes;
+        try (InputStream source = in;
+                GZIPOutputStream out = new GZIPOutputStream(connection.createFile(compressedName), chunkSize)) {
+            bytes = transfer(source, out, "compressed upload to R file " + fileName);
+        }
+
+        try {
+            connection.voidEval(String.format(R_COPY, "gzfile", escape(compressedName), "file", escape(fileName)));
+            connection.voidEval(String.format(R_REMOVE, escape(compressedName)));
+        }
+        catch (RserveException e) {
+            throw new IOException("Could not decompress " + compressedName + " in R: " + e.getMessage(), e);
+        }
+        return bytes;
+    }
+
+    /**
+     * reads a file from the working directory of the connection, gzipped on the wire if <code>compress</code>
+     * is set
+     *
+     * @return the number of uncompressed bytes
+     */
+    public long download(RConnection connection, String fileName, File target, boolean compress) throws IOException {
+        if ( !compress) {
+            return download(connection, fileName, target);
+        }
+
+        String compressedName = fileName + GZIP_SUFFIX;
+        try {
+            connection.voidEval(String.format(R_COPY, "file", escape(fileName), "gzfile", escape(compressedName)));
+        }
+        catch (RserveException e) {
+            throw new IOException("Could not compress " + fileName + " in R: " + e.getMessage(), e);
+        }
+
+        long bytes;
+        try (InputStream in = new GZIPInputStream(connection.openFile(compressedName), chunkSize);
+                OutputStream out = new FileOutputStream(target)) {
+            bytes = transfer(in, out, "compressed download of R file " + fileName);
+        }
+
+        try {
+            connection.voidEval(String.format(R_REMOVE, escape(compressedName)));
+        }
+        catch (RserveException e) {
+            log.warn("Could not remove compressed file {} in R: {}", compressedName, e.getMessage());
+        }
+        return bytes;
+    }
+
+    static String escape(String fileName) {
+        return fileName.replace("\\", "/").replace("\"", "\\\"");
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * writes the stream to a file in the working directory of the connection and closes the stream
+     *
+     * @return the number of transferred bytes
+     */
+    public long upload(InputStream in, RConnection connection, String fileName) throws IOException {
+        try (InputStream source = in; RFileOutputStream out = connection.createFile(fileName)) {
+            return transfer(source, out, "upload to R file " + fileName);
+        }
+    }
+
+    /**
+     * reads a file from the working directory of the connection
+     *
+     * @return the number of transferred bytes
+     */
+    public long download(RConnection connection, String fileName, File target) throws IOException {
+        try (RFileInputStream in = connection.openFile(fileName); OutputStream out = new FileOutputStream(target)) {
+            return transfer(in, out, "download of R file " + fileName);
+        }
+    }
+
+    /**
+     * copies the stream in chunks, the streams are not closed
+     *
+     * @return the number of transferred bytes
+     */
+    public long transfer(InputStream in, OutputStream out, String description) throws IOException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        byte[] buffer = acquire();
+        try {
+            int read = in.read(buffer);
+            while (read != -1) {
+                out.write(buffer, 0, read);
+                bytes += read;
+                read = in.read(buffer);
+            }
+            out.flush();
+        }
+        finally {
+            release(buffer);
+        }
+
+        if (log.isDebugEnabled()) {
+            long nanos = Math.max(System.nanoTime() - start, 1);
+            log.debug("Finished {}: {} bytes in {} ms ({} bytes/sec, chunk size {})",
+                      description,
+                      bytes,
+                      nanos / 1000000,
+                      bytes * 1000000000l / nanos,
+                      chunkSize);
+        }
+        return bytes;
+    }
+
+    private byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[chunkSize];
+    }
+
+    private void release(byte[] buffer) {
+        // a full pool simply drops the buffer
+        buffers.offer(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "RFileTransfer [chunkSize=" + chunkSize + ", compression=" + compression + ", pooledBuffers="
+                + buffers.size() + "]";
+    }
+
+}
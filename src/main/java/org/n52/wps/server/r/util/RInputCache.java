@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+
+/**
+ * A content-addressed cache of input files in a directory on the Rserve host. Inputs are identified by the
+ * SHA-256 hash of their content, so a file that is already cached is copied into the working directory
+ * instead of being uploaded again. Cache entries are never linked into a working directory, so a script
+ * that changes its input in place cannot change the cached file.
+ *
+ * Cached files are touched on every use, and the least recently used files are removed when the size of
+ * the cache exceeds its limit.
+ */
+public class RInputCache {
+
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * creates the cache directory, and copies the cached file to the file given second if it exists, returns
+     * if it was found
+     */
+    private static final String R_LOOKUP = "local({ dir.create(\"%1$s\", showWarnings = FALSE, recursive = TRUE); "
+            + "f <- file.path(\"%1$s\", \"%2$s\"); hit <- file.exists(f); "
+            + "if (hit) { Sys.setFileTime(f, Sys.time()); file.copy(f, \"%3$s\") }; hit })";
+
+    /**
+     * moves an uploaded file into the cache, copies it to the file given second and removes the least
+     * recently used cached files above the size limit
+     */
+    private static final String R_STORE = "local({ f <- file.path(\"%1$s\", \"%2$s\"); "
+            + "file.rename(\"%3$s\", f); file.copy(f, \"%4$s\"); "
+            + "info <- file.info(list.files(\"%1$s\", pattern = \"^[0-9a-f]{64}$\", full.names = TRUE)); "
+            + "info <- info[order(info$mtime), ]; total <- sum(info$size); i <- 1L; "
+            + "while (total > %5$s && i <= nrow(info)) { "
+            + "if (basename(rownames(info)[i]) != \"%2$s\") { "
+            + "file.remove(rownames(info)[i]); total <- total - info$size[i] }; i <- i + 1L }; "
+            + "invisible(NULL) })";
+
+    private static Logger log = LoggerFactory.getLogger(RInputCache.class);
+
+    private final String directory;
+
+    private final long maxSize;
+
+    private final RFileTransfer transfer;
+
+    /**
+     * @param directory
+     *        the cache directory on the Rserve host
+     * @param maxSize
+     *        the maximum size of the cache in bytes
+     * @param transfer
+     *        the component to upload files that are not yet cached
+     */
+    public RInputCache(String directory, long maxSize, RFileTransfer transfer) {
+        this.directory = RFileTransfer.escape(directory);
+        this.maxSize = maxSize;
+        this.transfer = transfer;
+    }
+
+    /**
+     * makes the content of the stream available as a file in the working directory of the connection,
+     * uploading it only if it is not cached yet, and closes the stream
+     *
+     * @param fileName
+     *        the name of the file in the working directory
+     * @param compress
+     *        if the upload of a file that is not cached should be compressed
+     */
+    public void stage(InputStream in, RConnection connection, String fileName, boolean compress) throws IOException {
+        File spool = File.createTempFile("wps4r-input-", ".tmp");
+        try {
+            String hash = spool(in, spool);
+            stage(hash, spool, connection, fileName, compress);
+        }
+        finally {
+            if ( !spool.delete()) {
+                log.warn("Could not delete spooled input {}", spool);
+            }
+        }
+    }
+
+    /**
+     * makes the content of the local file available as a file in the working directory of the connection,
+     * uploading it only if it is not cached yet
+     *
+     * @see #stage(InputStream, RConnection, String, boolean)
+     */
+    public void stage(File file, RConnection connection, String fileName, boolean compress) throws IOException {
+        stage(RChecksums.sha256(file), file, connection, fileName, compress);
+    }
+
+    private void stage(String hash, File file, RConnection connection, String fileName, boolean compress) throws IOException {
+        try {
+            String target = RFileTransfer.escape(fileName);
+
+            if (connection.eval(String.format(R_LOOKUP, directory, hash, target)).asInteger() == 1) {
+                log.debug("Input file {} found in cache {} as {}, skipping upload", fileName, directory, hash);
+                return;
+            }
+
+            String part = directory + "/" + hash + "." + UUID.randomUUID().toString() + PART_SUFFIX;
+            transfer.upload(new FileInputStream(file), connection, part, compress);
+            connection.voidEval(String.format(R_STORE, directory, hash, part, target, Long.toString(maxSize)));
+            log.debug("Input file {} added to cache {} as {}", fileName, directory, hash);
+        }
+        catch (RserveException | REXPMismatchException e) {
+            throw new IOException("Could not use input cache " + directory + " for " + fileName + ": "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * copies the stream to a local file and returns the hex encoded hash of its content
+     */
+    private String spool(InputStream in, File target) throws IOException {
+        try (HashingInputStream source = new HashingInputStream(Hashing.sha256(), in);
+                OutputStream out = new FileOutputStream(target)) {
+            transfer.transfer(source, out, "spooling of input to " + target);
+            return source.hash().toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RInputCache [directory=" + directory + ", maxSize=" + maxSize + "]";
+    }
+
+}
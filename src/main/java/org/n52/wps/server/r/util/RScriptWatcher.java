@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the script and import directories and reports changed files to a listener. Events are collected
+ * until the directories have been quiet for a short period, because editors often write a file in several
+ * steps, so the listener is called once per batch of changes on a single background thread.
+ *
+ */
+public class RScriptWatcher {
+
+    private static Logger log = LoggerFactory.getLogger(RScriptWatcher.class);
+
+    private static final long QUIET_PERIOD = 500l;
+
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * @param paths
+         *        the created, modified or deleted files, or a watched directory if events were lost and it
+         *        has to be rescanned
+         */
+        void onChange(Set<Path> paths);
+
+    }
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+
+    private final Listener listener;
+
+    private Thread thread;
+
+    public RScriptWatcher(Collection<Path> directories, Listener listener) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+        for (Path directory : directories) {
+            if (Files.isDirectory(directory)) {
+                WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                this.directories.put(key, directory);
+                log.debug("Watching directory {}", directory);
+            }
+            else {
+                log.debug("Not watching missing directory {}", directory);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (this.thread == null) {
+            this.thread = new Thread(this::run, "WPS4R-script-watcher");
+            this.thread.setDaemon(true);
+            this.thread.start();
+            log.info("Watching {} directories for script changes", directories.size());
+        }
+    }
+
+    private void run() {
+        try {
+            while ( !Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new LinkedHashSet<>();
+                while (key != null) {
+                    collect(key, changed);
+                    key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+
+                if ( !changed.isEmpty()) {
+                    log.debug("Detected changes: {}", changed);
+                    try {
+                        listener.onChange(changed);
+                    }
+                    catch (RuntimeException e) {
+                        log.error("Could not apply changes of {}", changed, e);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Script watcher stopped");
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path directory = directories.get(key);
+        for (WatchEvent< ? > event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == OVERFLOW) {
+                changed.add(directory);
+            }
+            else {
+                changed.add(directory.resolve((Path) event.context()));
+            }
+        }
+
+        if ( !key.reset() && directory != null) {
+            log.warn("Directory {} is no longer accessible and not watched anymore", directory);
+            directories.remove(key);
+        }
+    }
+
+    public synchronized void shutdown() {
+        try {
+            this.watchService.close();
+        }
+        catch (IOException e) {
+            log.warn("Could not close watch service", e);
+        }
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An Rserve instance that executions can be routed to, including the counters used for routing and the
+ * state of failed hosts, which are ejected and retried with an exponential backoff.
+ */
+public class RServeEndpoint {
+
+    private static final String SEPARATOR = ":";
+
+    private static final long MAX_BACKOFF = 300000l;
+
+    /** weight of a new latency sample in the moving average */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final String host;
+
+    private final int port;
+
+    private final int weight;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile double latency = 0;
+
+    private volatile long ejectedUntil = 0;
+
+    public RServeEndpoint(String host, int port, int weight) {
+        this.host = host;
+        this.port = port;
+        this.weight = Math.max(weight, 1);
+    }
+
+    /**
+     * @param endpoint
+     *        the endpoint in the form <code>host[:port[:weight]]</code>
+     * @param defaultPort
+     *        the port if none is given
+     * @throws IllegalArgumentException
+     *         if the host is missing or the port or weight is not a number
+     */
+    public static RServeEndpoint parse(String endpoint, int defaultPort) {
+        String[] parts = endpoint.trim().split(SEPARATOR);
+        String host = parts[0].trim();
+        if (host.isEmpty() || parts.length > 3) {
+            throw new IllegalArgumentException("Invalid Rserve endpoint '" + endpoint
+                    + "', expected host[:port[:weight]]");
+        }
+        try {
+            int port = parts.length > 1 && !parts[1].trim().isEmpty() ? Integer.parseInt(parts[1].trim())
+                    : defaultPort;
+            int weight = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 1;
+            return new RServeEndpoint(host, port, weight);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Rserve endpoint '" + endpoint
+                    + "', port and weight must be numbers", e);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public boolean isLocalhost() {
+        return "localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host);
+    }
+
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    public long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    /**
+     * @return the number of borrowed connections relative to the weight, lower is better
+     */
+    public double getLoad() {
+        return (outstanding.get() + 1d) / weight;
+    }
+
+    /**
+     * @return the load scaled by the average round-trip time of an evaluation, lower is better
+     */
+    public double getLatencyWeightedLoad() {
+        return getLoad() * Math.max(latency, 1d);
+    }
+
+    /**
+     * counts a borrowed connection, called only once the borrow succeeded
+     */
+    public void started() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    public void finished() {
+        outstanding.decrementAndGet();
+    }
+
+    public void recordLatency(double millis) {
+        double current = this.latency;
+        this.latency = current == 0 ? millis : current + LATENCY_SMOOTHING * (millis - current);
+    }
+
+    public void markSuccess() {
+        consecutiveFailures.set(0);
+        ejectedUntil = 0;
+    }
+
+    /**
+     * ejects the endpoint for the given backoff, which doubles with each consecutive failure
+     */
+    public void markFailure(long backoff) {
+        failures.incrementAndGet();
+        int consecutive = Math.min(consecutiveFailures.incrementAndGet(), 16);
+        long delay = Math.min(backoff * (1l << (consecutive - 1)), MAX_BACKOFF);
+        ejectedUntil = System.currentTimeMillis() + delay;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public double getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("RServeEndpoint [").append(host).append(SEPARATOR).append(port);
+        builder.append(", weight=").append(weight);
+        builder.append(", outstanding=").append(outstanding.get());
+        builder.append(", requests=").append(requests.get());
+        builder.append(", failures=").append(failures.get());
+        builder.append(", latency=").append(String.format("%.1fms", latency));
+        builder.append(", available=").append(isAvailable());
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
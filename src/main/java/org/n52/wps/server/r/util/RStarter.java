@@ -28,8 +28,19 @@
  */
 package org.n52.wps.server.r.util;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +52,10 @@ import org.slf4j.LoggerFactory;
  *
  * For information about RServe on Windows see http://rforge.net/Rserve/rserve-win.html
  *
+ * Besides the single batch start, the starter can supervise a number of local Rserve workers on consecutive
+ * ports. The workers run in the foreground (<code>run.Rserve()</code>) so that their processes can be
+ * tracked, they are restarted if they crash and stopped on {@link #shutdown()}.
+ *
  * @author Daniel
  *
  */
@@ -50,6 +65,59 @@ public class RStarter {
 
     private static boolean classicStartCommand = false;
 
+    private static final String R_COMMAND = "R";
+
+    private static final long WORKER_START_TIMEOUT = 30000l;
+
+    private static final long WORKER_CHECK_INTERVAL = 5000l;
+
+    private static final long WORKER_MAX_BACKOFF = 60000l;
+
+    /** a worker running this long is considered stable and its restart backoff is reset */
+    private static final long WORKER_STABLE_PERIOD = 60000l;
+
+    private static final long WORKER_STOP_TIMEOUT = 5000l;
+
+    private static class Worker {
+
+        private final int port;
+
+        private final File pidFile;
+
+        private final File logFile;
+
+        private Process process;
+
+        private String pid;
+
+        private long started;
+
+        private int restarts = 0;
+
+        private long nextStart = 0;
+
+        public Worker(int port, File directory) {
+            this.port = port;
+            this.pidFile = new File(directory, "rserve_" + port + ".pid");
+            this.logFile = new File(directory, "rserve_" + port + ".log");
+        }
+
+        public boolean isAlive() {
+            return process != null && process.isAlive();
+        }
+
+        @Override
+        public String toString() {
+            return "Worker [port=" + port + ", pid=" + pid + ", alive=" + isAlive() + ", restarts=" + restarts
+                    + "]";
+        }
+
+    }
+
+    private final List<Worker> workers = new ArrayList<>();
+
+    private ScheduledExecutorService supervisor;
+
     // TODO: make starter non-static and variables configurable
     public enum OutputLevel {
         quiet, slave, verbose;
@@ -125,6 +193,175 @@ public class RStarter {
         log.info("Started R.");
     }
 
+    /**
+     * Starts the given number of Rserve workers on consecutive ports and keeps them running until
+     * {@link #shutdown()}. Waits until the workers accept connections.
+     *
+     * @return the ports of the started workers
+     */
+    public synchronized List<Integer> startWorkers(int count, int basePort) throws IOException {
+        if ( !workers.isEmpty()) {
+            return getWorkerPorts();
+        }
+
+        File directory = Files.createTempDirectory("wps4r-rserve").toFile();
+        log.info("Starting {} Rserve workers from port {}, pid and log files in {}", count, basePort, directory);
+
+        for (int i = 0; i < count; i++) {
+            Worker worker = new Worker(basePort + i, directory);
+            workers.add(worker);
+            start(worker);
+        }
+        for (Worker worker : workers) {
+            awaitStart(worker);
+        }
+
+        supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WPS4R-rserve-supervisor");
+            t.setDaemon(true);
+            return t;
+        });
+        supervisor.scheduleWithFixedDelay(this::supervise,
+                                          WORKER_CHECK_INTERVAL,
+                                          WORKER_CHECK_INTERVAL,
+                                          TimeUnit.MILLISECONDS);
+
+        log.info("Started Rserve workers: {}", workers);
+        return getWorkerPorts();
+    }
+
+    public synchronized List<Integer> getWorkerPorts() {
+        List<Integer> ports = new ArrayList<>();
+        for (Worker worker : workers) {
+            ports.add(worker.port);
+        }
+        return Collections.unmodifiableList(ports);
+    }
+
+    private void start(Worker worker) throws IOException {
+        Files.deleteIfExists(worker.pidFile.toPath());
+        // run.Rserve() stays in the foreground, unlike R CMD Rserve, so the process is the worker
+        String script = String.format("writeLines(as.character(Sys.getpid()), '%s'); library(Rserve); run.Rserve(port = %d)",
+                                      worker.pidFile.getAbsolutePath().replace("\\", "/"),
+                                      worker.port);
+        ProcessBuilder pb = new ProcessBuilder(R_COMMAND, "--vanilla", OutputLevel.slave.getCommand(), "-e", script);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(worker.logFile));
+
+        worker.process = pb.start();
+        worker.pid = null;
+        worker.started = System.currentTimeMillis();
+        log.debug("Started {} with command {}", worker, pb.command());
+    }
+
+    private void awaitStart(Worker worker) {
+        long deadline = System.currentTimeMillis() + WORKER_START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline && worker.isAlive()) {
+            if (worker.pid == null && worker.pidFile.exists()) {
+                try {
+                    worker.pid = new String(Files.readAllBytes(worker.pidFile.toPath()), StandardCharsets.UTF_8).trim();
+                }
+                catch (IOException e) {
+                    log.trace("Could not read pid file of {}", worker, e);
+                }
+            }
+            if (worker.pid != null && isListening(worker.port)) {
+                log.debug("Worker is ready: {}", worker);
+                return;
+            }
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        log.warn("Worker did not start within {}ms, see {}: {}", WORKER_START_TIMEOUT, worker.logFile, worker);
+    }
+
+    private static boolean isListening(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 500);
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * restarts crashed workers, waiting longer after each consecutive crash
+     */
+    private synchronized void supervise() {
+        long now = System.currentTimeMillis();
+        for (Worker worker : workers) {
+            if (worker.isAlive()) {
+                if (worker.restarts > 0 && now - worker.started > WORKER_STABLE_PERIOD) {
+                    worker.restarts = 0;
+                }
+                continue;
+            }
+
+            if (worker.nextStart == 0) {
+                long backoff = Math.min(1000l << Math.min(worker.restarts, 16), WORKER_MAX_BACKOFF);
+                worker.nextStart = now + backoff;
+                log.warn("Rserve worker crashed (exit value {}), restarting in {}ms: {}",
+                         worker.process == null ? null : worker.process.exitValue(),
+                         backoff,
+                         worker);
+            }
+            else if (now >= worker.nextStart) {
+                worker.nextStart = 0;
+                worker.restarts++;
+                try {
+                    start(worker);
+                    awaitStart(worker);
+                    log.info("Restarted {}", worker);
+                }
+                catch (IOException | RuntimeException e) {
+                    log.error("Could not restart {}", worker, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * stops the supervised workers
+     */
+    public synchronized void shutdown() {
+        if (supervisor != null) {
+            supervisor.shutdownNow();
+            supervisor = null;
+        }
+
+        for (Worker worker : workers) {
+            if (worker.isAlive()) {
+                log.debug("Stopping {}", worker);
+                worker.process.destroy();
+            }
+        }
+        for (Worker worker : workers) {
+            try {
+                if (worker.process != null
+                        && !worker.process.waitFor(WORKER_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.warn("Worker did not stop, killing it: {}", worker);
+                    worker.process.destroyForcibly();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.process.destroyForcibly();
+            }
+            worker.pidFile.delete();
+        }
+
+        if ( !workers.isEmpty()) {
+            log.info("Stopped Rserve workers: {}", workers);
+        }
+        workers.clear();
+    }
+
     /**
      * TODO test this method
      */
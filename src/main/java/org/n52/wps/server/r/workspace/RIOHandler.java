@@ -28,19 +28,24 @@
  */
 package org.n52.wps.server.r.workspace;
 
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
+import org.geotools.coverage.grid.GridCoverage2D;
 import org.n52.javaps.gt.io.data.GenericFileDataWithGT;
 import org.n52.javaps.gt.io.data.binding.complex.GTRasterDataBinding;
 import org.n52.javaps.gt.io.data.binding.complex.GTVectorDataBinding;
@@ -69,15 +74,25 @@ import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.wps.server.r.data.RDataType;
 import org.n52.wps.server.r.data.RDataTypeRegistry;
 import org.n52.wps.server.r.data.RTypeDefinition;
+import org.n52.wps.server.r.metadata.RParsedScript;
 import org.n52.wps.server.r.syntax.RAnnotation;
 import org.n52.wps.server.r.syntax.RAnnotationException;
 import org.n52.wps.server.r.syntax.RAnnotationType;
 import org.n52.wps.server.r.syntax.RAttribute;
+import org.n52.wps.server.r.util.RFileTransfer;
+import org.n52.wps.server.r.util.RInputCache;
+import org.opengis.geometry.Envelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPLogical;
 import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
 import org.rosuda.REngine.Rserve.RConnection;
-import org.rosuda.REngine.Rserve.RFileInputStream;
-import org.rosuda.REngine.Rserve.RFileOutputStream;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -125,17 +140,35 @@ public class RIOHandler {
 
     private RDataTypeRegistry dataTypeRegistry;
 
+    private final RFileTransfer transfer;
+
+    private final RInputCache inputCache;
+
     public RIOHandler(RDataTypeRegistry dataTypeRegistry) {
+        this(dataTypeRegistry, new RFileTransfer());
+    }
+
+    public RIOHandler(RDataTypeRegistry dataTypeRegistry, RFileTransfer transfer) {
+        this(dataTypeRegistry, transfer, null);
+    }
+
+    /**
+     * @param inputCache
+     *        the cache for input files on the Rserve host, may be <code>null</code> to upload all inputs
+     */
+    public RIOHandler(RDataTypeRegistry dataTypeRegistry, RFileTransfer transfer, RInputCache inputCache) {
         this.dataTypeRegistry = dataTypeRegistry;
+        this.transfer = transfer;
+        this.inputCache = inputCache;
 
         log.debug("NEW {}", this);
 
         this.filter = new StringInputFilter();
     }
 
-    public Class< ? extends Data<?>> getInputDataType(String id, Collection<RAnnotation> annotations) {
+    public Class< ? extends Data<?>> getInputDataType(String id, RParsedScript script) {
         try {
-            return getIODataType(RAnnotationType.INPUT, id, annotations);
+            return getIODataType(RAnnotationType.INPUT, id, script);
         }
         catch (RAnnotationException e) {
             String message = "Data type for id " + id + " could not be retrieved, return null";
@@ -145,47 +178,40 @@ public class RIOHandler {
     }
 
     /**
-     * Searches annotations (class attribute) for Inputs / Outputs with a specific referring id
+     * Looks up the data type of the input / output with a specific id in the annotation index of the script
      *
      * @param ioType
      * @param id
-     * @param annotations
+     * @param script
      * @return
      * @throws RAnnotationException
      */
     protected Class<? extends Data<?>> getIODataType(RAnnotationType ioType,
                                                     String id,
-                                                    Collection<RAnnotation> annotations) throws RAnnotationException {
-        Class< ? extends Data<?>> dataType = null;
-        List<RAnnotation> ioNotations = RAnnotation.filterAnnotations(annotations, ioType, RAttribute.IDENTIFIER, id);
-        if (ioNotations.isEmpty()) {
+                                                    RParsedScript script) throws RAnnotationException {
+        RAnnotation annotation = script.getAnnotation(ioType, id);
+        if (annotation == null) {
             log.error("Missing R-script-annotation of type " + ioType.toString().toLowerCase() + " for id \"" + id
                     + "\" ,datatype - class not found");
             return null;
         }
-        if (ioNotations.size() > 1) {
-            log.warn("R-script contains more than one annotation of type " + ioType.toString().toLowerCase()
-                    + " for id \"" + id + "\n" + " WPS selects the first one.");
-        }
-
-        RAnnotation annotation = ioNotations.get(0);
-        String rClass = annotation.getStringValue(RAttribute.TYPE);
-        dataType = annotation.getDataClass(rClass);
 
+        Class< ? extends Data<?>> dataType = script.getDataClass(ioType, id);
         if (dataType == null) {
             log.error("R-script-annotation for " + ioType.toString().toLowerCase() + " id \"" + id
-                    + "\" contains unsuported data format identifier \"" + rClass + "\"");
+                    + "\" contains unsuported data format identifier \"" + annotation.getStringValue(RAttribute.TYPE)
+                    + "\"");
         }
         return dataType;
     }
 
-    public Class< ? extends Data<?>> getOutputDataType(String id, Collection<RAnnotation> annotations) {
+    public Class< ? extends Data<?>> getOutputDataType(String id, RParsedScript script) {
         if (id.equalsIgnoreCase("sessionInfo") || id.equalsIgnoreCase("warnings")){
             return GenericFileDataBinding.class;
         }
 
         try {
-            return getIODataType(RAnnotationType.OUTPUT, id, annotations);
+            return getIODataType(RAnnotationType.OUTPUT, id, script);
         }
         catch (RAnnotationException e) {
             String message = "Data type for id " + id + " could not be retrieved, return null";
@@ -195,59 +221,334 @@ public class RIOHandler {
     }
 
     /**
-     * parses iData values to string representations which can be evaluated by Rserve, complex data will be
-     * preprocessed and handled here, uses parseLiteralInput for parsing literal Data
+     * Converts a single input to an R object that can be assigned directly with
+     * {@link RConnection#assign(String, REXP)}, so that it does not need to be parsed by R. Complex inputs are
+     * streamed to the R working directory and represented by their file name.
      *
-     * @param input
-     *        input value as databinding
-     * @param connection
-     *        (open)
-     * @return String which could be evaluated by RConnection.eval(String)
-     * @throws IOException
-     * @throws RserveException
-     * @throws REXPMismatchException
-     * @throws RAnnotationException
+     * @return the R object, a vector if the input has more than one value
      */
-    public String parseInput(List<Data<?>> input, RConnection connection) throws IOException,
+    public REXP parseInputToREXP(List<Data<?>> input, RConnection connection) throws IOException,
             RserveException,
             REXPMismatchException,
-            RAnnotationException,
             OwsExceptionReport {
+        return parseInputToREXP(input, connection, null);
+    }
 
-        String result = null;
-        // building an R - vector of input entries containing more than one
-        // value:
+    /**
+     * @param sharedWorkDirectory
+     *        the R working directory if R can read the files of the WPS, file inputs are then linked into it
+     *        instead of streamed, or <code>null</code>
+     */
+    public REXP parseInputToREXP(List<Data<?>> input, RConnection connection, File sharedWorkDirectory) throws IOException,
+            RserveException,
+            REXPMismatchException,
+            OwsExceptionReport {
         if (input.size() > 1) {
             log.debug("Parsing input vector of length {}", input.size());
-
-            result = "c(";
-            // parsing elements 1..n-1 to vector:
-            for (int i = 0; i < input.size() - 1; i++) {
-                if (input.get(i).equals(null)){
-                    continue;
-                }
-                result += parseInput(input.subList(i, i + 1), connection);
-                result += ", ";
-            }
-            // parsing last element separately to vecor:
-            result += parseInput(input.subList(input.size() - 1, input.size()), connection);
-            result += ")";
+            return parseInputVectorToREXP(input, connection, sharedWorkDirectory);
         }
 
         Data<?> ivalue = input.get(0);
         log.debug("Handling input value {} with payload {}", ivalue, ivalue.getPayload());
 
-        Class<? extends Data> iclass = ivalue.getClass();
         if (ivalue instanceof LiteralData){
-            return parseLiteralInput(iclass, ivalue.getPayload());
+            return parseLiteralInputToREXP(ivalue.getPayload());
+        }
+
+        return new REXPString(transferComplexInput(ivalue, connection, sharedWorkDirectory));
+    }
+
+    /**
+     * @param type
+     *        the type of the input annotation, raster inputs of type {@link RDataType#GEOTIFF_MATRIX} are
+     *        converted to matrices instead of streamed as files
+     */
+    public REXP parseInputToREXP(List<Data<?>> input,
+                                 RTypeDefinition type,
+                                 RConnection connection,
+                                 File sharedWorkDirectory) throws IOException,
+            RserveException,
+            REXPMismatchException,
+            OwsExceptionReport {
+        if (type == RDataType.GEOTIFF_MATRIX && isRasterInput(input)) {
+            if (input.size() == 1) {
+                return parseRasterInputToREXP((GTRasterDataBinding) input.get(0));
+            }
+
+            REXP[] matrices = new REXP[input.size()];
+            for (int i = 0; i < matrices.length; i++) {
+                matrices[i] = parseRasterInputToREXP((GTRasterDataBinding) input.get(i));
+            }
+            return new REXPGenericVector(new RList(matrices));
+        }
+        return parseInputToREXP(input, connection, sharedWorkDirectory);
+    }
+
+    private static boolean isRasterInput(List<Data<?>> input) {
+        for (Data<?> value : input) {
+            if ( !(value instanceof GTRasterDataBinding)) {
+                return false;
+            }
+        }
+        return !input.isEmpty();
+    }
+
+    /**
+     * Converts a grid coverage to an R matrix, or to an array with the bands as third dimension, so it does not
+     * have to be encoded as GeoTIFF, uploaded and read in R. Integer samples become an integer matrix, all others a
+     * double matrix, and no data values are <code>NA</code>. The matrix has the attributes <code>extent</code>
+     * (<code>xmin, xmax, ymin, ymax</code>) and <code>crs</code> (WKT), which are enough to create a raster object in
+     * the script.
+     */
+    public REXP parseRasterInputToREXP(GTRasterDataBinding input) {
+        GridCoverage2D coverage = input.getPayload();
+        Raster raster = coverage.getRenderedImage().getData();
+        int cols = raster.getWidth();
+        int rows = raster.getHeight();
+        int bands = raster.getNumBands();
+        int cells = rows * cols;
+
+        int[] dim = bands > 1 ? new int[] {rows, cols, bands} : new int[] {rows, cols};
+        Envelope envelope = coverage.getEnvelope();
+        double[] extent = new double[] {envelope.getMinimum(0),
+                                        envelope.getMaximum(0),
+                                        envelope.getMinimum(1),
+                                        envelope.getMaximum(1)};
+        CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem2D();
+        REXPList attributes = new REXPList(new RList(new REXP[] {new REXPInteger(dim),
+                                                                 new REXPDouble(extent),
+                                                                 new REXPString(crs == null ? null : crs.toWKT())},
+                                                     new String[] {"dim", "extent", "crs"}));
+
+        // R stores matrices column by column, the raster is read row by row
+        double[] samples = new double[cells];
+        if (isIntegerRaster(raster)) {
+            int[] values = new int[cells * bands];
+            for (int band = 0; band < bands; band++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY(), cols, rows, band, samples);
+                double[] noData = getNoDataValues(coverage, band);
+                for (int row = 0; row < rows; row++) {
+                    for (int col = 0; col < cols; col++) {
+                        double sample = samples[row * cols + col];
+                        values[band * cells + col * rows + row] = isNoData(sample, noData) ? REXPInteger.NA
+                                : (int) sample;
+                    }
+                }
+            }
+            log.debug("Converted raster input to {} integer matrix", Arrays.toString(dim));
+            return new REXPInteger(values, attributes);
+        }
+
+        double[] values = new double[cells * bands];
+        for (int band = 0; band < bands; band++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY(), cols, rows, band, samples);
+            double[] noData = getNoDataValues(coverage, band);
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    double sample = samples[row * cols + col];
+                    values[band * cells + col * rows + row] = isNoData(sample, noData) ? REXPDouble.NA : sample;
+                }
+            }
+        }
+        log.debug("Converted raster input to {} double matrix", Arrays.toString(dim));
+        return new REXPDouble(values, attributes);
+    }
+
+    private static boolean isIntegerRaster(Raster raster) {
+        switch (raster.getSampleModel().getDataType()) {
+        case DataBuffer.TYPE_BYTE:
+        case DataBuffer.TYPE_SHORT:
+        case DataBuffer.TYPE_USHORT:
+        case DataBuffer.TYPE_INT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static double[] getNoDataValues(GridCoverage2D coverage, int band) {
+        double[] noData = coverage.getSampleDimension(band).getNoDataValues();
+        return noData == null ? new double[0] : noData;
+    }
+
+    private static boolean isNoData(double sample, double[] noData) {
+        if (Double.isNaN(sample)) {
+            return true;
+        }
+        for (double value : noData) {
+            if (Double.compare(sample, value) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Packs the values of a multi-valued input into one primitive array. The vector type is the most specific
+     * one that fits all values: integer, double, logical or else character. Complex inputs are streamed and
+     * represented by a character vector of file names.
+     */
+    private REXP parseInputVectorToREXP(List<Data<?>> input, RConnection connection, File sharedWorkDirectory) throws IOException,
+            RserveException,
+            REXPMismatchException {
+        int n = input.size();
+        Object[] payloads = new Object[n];
+        boolean allIntegers = true;
+        boolean allNumbers = true;
+        boolean allBooleans = true;
+        for (int i = 0; i < n; i++) {
+            Data<?> value = input.get(i);
+            if (value == null) {
+                continue;
+            }
+            if ( !(value instanceof LiteralData)) {
+                return parseComplexInputVectorToREXP(input, connection, sharedWorkDirectory);
+            }
+
+            Object payload = value.getPayload();
+            payloads[i] = payload;
+            if (payload == null) {
+                continue;
+            }
+            allIntegers = allIntegers && isInteger(payload);
+            allNumbers = allNumbers && payload instanceof Number;
+            allBooleans = allBooleans && payload instanceof Boolean;
+        }
+
+        if (allIntegers && !allBooleans) {
+            int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = payloads[i] == null ? REXPInteger.NA : ((Number) payloads[i]).intValue();
+            }
+            return new REXPInteger(values);
+        }
+        if (allNumbers && !allBooleans) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = payloads[i] == null ? REXPDouble.NA : ((Number) payloads[i]).doubleValue();
+            }
+            return new REXPDouble(values);
+        }
+        if (allBooleans && !allNumbers) {
+            byte[] values = new byte[n];
+            for (int i = 0; i < n; i++) {
+                if (payloads[i] == null) {
+                    values[i] = REXPLogical.NA;
+                }
+                else {
+                    values[i] = (Boolean) payloads[i] ? REXPLogical.TRUE : REXPLogical.FALSE;
+                }
+            }
+            return new REXPLogical(values);
+        }
+
+        // a null element is NA in a character vector
+        String[] values = new String[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = payloads[i] == null ? null : payloads[i].toString();
+        }
+        return new REXPString(values);
+    }
+
+    private REXP parseComplexInputVectorToREXP(List<Data<?>> input,
+                                               RConnection connection,
+                                               File sharedWorkDirectory) throws IOException,
+            RserveException,
+            REXPMismatchException {
+        String[] fileNames = new String[input.size()];
+        for (int i = 0; i < fileNames.length; i++) {
+            Data<?> value = input.get(i);
+            fileNames[i] = value == null ? null : transferComplexInput(value, connection, sharedWorkDirectory);
+        }
+        return new REXPString(fileNames);
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Integer || value instanceof Short || value instanceof Byte
+                || (value instanceof BigInteger && ((BigInteger) value).bitLength() < Integer.SIZE);
+    }
+
+    /**
+     * @return the typed R object for the payload of a literal input, <code>NA</code> if it is <code>null</code>
+     */
+    public REXP parseLiteralInputToREXP(Object value) {
+        if (value == null) {
+            log.warn("Value is null - setting it to 'NA' in R.");
+            return new REXPLogical(REXPLogical.NA);
+        }
+
+        if (isInteger(value)) {
+            return new REXPInteger(((Number) value).intValue());
+        }
+        if (value instanceof Number) {
+            // R has no 64 bit integers
+            return new REXPDouble(((Number) value).doubleValue());
+        }
+        if (value instanceof Boolean) {
+            return new REXPLogical((Boolean) value);
+        }
+        if ( !(value instanceof String)) {
+            log.warn("An unsuported literal class occured for input value {}. It will be interpreted as character value within R",
+                     value.getClass());
+        }
+        return new REXPString(value.toString());
+    }
+
+    /**
+     * @return the typed R object for the default value of an input annotation, <code>NA</code> if there is
+     *         none
+     */
+    public REXP parseDefaultValueToREXP(RAnnotation annotation) throws RAnnotationException {
+        String value = annotation.getStringValue(RAttribute.DEFAULT_VALUE);
+        if (value == null) {
+            return parseLiteralInputToREXP(null);
+        }
+
+        RTypeDefinition type = annotation.getRDataType();
+        try {
+            if (type == RDataType.INTEGER) {
+                return new REXPInteger(Integer.parseInt(value.trim()));
+            }
+            if (type == RDataType.DOUBLE) {
+                return new REXPDouble(Double.parseDouble(value.trim()));
+            }
+        }
+        catch (NumberFormatException e) {
+            log.warn("Default value '{}' is not a valid {}, using it as character value", value, type);
+            return new REXPString(value);
         }
+        if (type == RDataType.BOOLEAN) {
+            return new REXPLogical(Boolean.parseBoolean(value.trim()));
+        }
+        return new REXPString(value);
+    }
 
+    /**
+     * streams a complex input to the R working directory, or links it there if R shares the file system
+     *
+     * @return the name of the file in the R working directory
+     */
+    private String transferComplexInput(Data<?> ivalue, RConnection connection, File sharedWorkDirectory) throws IOException,
+            RserveException,
+            REXPMismatchException {
         if (ivalue instanceof GenericFileDataWithGTBinding) {
             GenericFileDataWithGT value = (GenericFileDataWithGT) ivalue.getPayload();
+            // creating the base file consumes the data stream, e.g. for the key of the result cache
+            File baseFile = value.getBaseFile(sharedWorkDirectory != null);
+            if (sharedWorkDirectory != null) {
+                String linked = linkToWorkspace(baseFile, value.getFileExtension(), sharedWorkDirectory);
+                if (linked != null) {
+                    return linked;
+                }
+            }
 
-            InputStream is = value.getDataStream();
             String ext = value.getFileExtension();
-            result = streamFromWPSToRserve(connection, is, ext);
+            if (baseFile != null && baseFile.isFile()) {
+                return streamFromWPSToRserve(connection, baseFile, ext, value.getMimeType());
+            }
+
+            InputStream is = value.getDataStream();
+            String result = streamFromWPSToRserve(connection, is, ext, value.getMimeType());
             is.close();
 
             return result;
@@ -255,10 +556,22 @@ public class RIOHandler {
 
         if (ivalue instanceof GenericFileDataBinding) {
             GenericFileData value = (GenericFileData) ivalue.getPayload();
+            // creating the base file consumes the data stream, e.g. for the key of the result cache
+            File baseFile = value.getBaseFile(sharedWorkDirectory != null);
+            if (sharedWorkDirectory != null) {
+                String linked = linkToWorkspace(baseFile, value.getFileExtension(), sharedWorkDirectory);
+                if (linked != null) {
+                    return linked;
+                }
+            }
 
-            InputStream is = value.getDataStream();
             String ext = value.getFileExtension();
-            result = streamFromWPSToRserve(connection, is, ext);
+            if (baseFile != null && baseFile.isFile()) {
+                return streamFromWPSToRserve(connection, baseFile, ext, value.getMimeType());
+            }
+
+            InputStream is = value.getDataStream();
+            String result = streamFromWPSToRserve(connection, is, ext, value.getMimeType());
             is.close();
 
             return result;
@@ -270,7 +583,7 @@ public class RIOHandler {
             try {
                 is = tiffGen.generate(null, ivalue, null);
                 // String ext = value.getFileExtension();
-                result = streamFromWPSToRserve(connection, is, "tiff");
+                String result = streamFromWPSToRserve(connection, is, "tiff", "image/tiff");
                 is.close();
 
                 return result;
@@ -284,25 +597,19 @@ public class RIOHandler {
             GTVectorDataBinding value = (GTVectorDataBinding) ivalue;
             File shp = value.getPayloadAsShpFile();
 
-            String path = shp.getAbsolutePath();
-            String baseName = path.substring(0, path.length() - ".shp".length());
-            File shx = new File(baseName + ".shx");
-            File dbf = new File(baseName + ".dbf");
-            File prj = new File(baseName + ".prj");
-
-            File shpZip = IOUtils.zip(shp, shx, dbf, prj);
-
-            InputStream is = new FileInputStream(shpZip);
-            String ext = "shp";
-            result = streamFromWPSToRserve(connection, is, ext);
-
-            is.close();
+            if (sharedWorkDirectory != null) {
+                // the sidecar files (shx, dbf, prj) are linked together with the shp file
+                String linked = linkToWorkspace(shp, "shp", sharedWorkDirectory);
+                if (linked != null) {
+                    return linked;
+                }
+            }
 
-            return result;
+            return streamToWorkspace(connection, shp, "shp");
         }
 
         // if nothing was supported:
-        String message = "An unsuported IData Class occured for input: " + input.get(0).getClass();
+        String message = "An unsuported IData Class occured for input: " + ivalue.getClass();
         log.error(message);
         throw new RuntimeException(message);
     }
@@ -347,7 +654,7 @@ public class RIOHandler {
     public Data<?> parseOutput(RConnection connection,
                              String result_id,
                              REXP result,
-                             Collection<RAnnotation> annotations,
+                             RParsedScript script,
                              RWorkspace workspace) throws IOException,
             REXPMismatchException,
             RserveException,
@@ -364,21 +671,11 @@ public class RIOHandler {
             throw new NoApplicableCodeException();
         }
 
-        Class< ? extends Data<?>> iClass = getOutputDataType(result_id, annotations);
+        Class< ? extends Data<?>> iClass = getOutputDataType(result_id, script);
         log.debug("Output data type: {}", iClass.toString());
 
-        // extract mimetype from annotations (TODO: might have to be
-        // simplified somewhen)
-        List<RAnnotation> list = RAnnotation.filterAnnotations(annotations,
-                                                               RAnnotationType.OUTPUT,
-                                                               RAttribute.IDENTIFIER,
-                                                               result_id);
-        if (list.size() > 1){
-            log.warn("Filtered for annotation by name but got more than one result! Just using the first one of : {}",
-                     Arrays.toString(list.toArray()));
-        }
-
-        RAnnotation currentAnnotation = list.get(0);
+        // data type and mime type are resolved once when the script is parsed
+        RAnnotation currentAnnotation = script.getAnnotation(RAnnotationType.OUTPUT, result_id);
         log.debug("Current annotation: {}", currentAnnotation);
         // extract filename from R
 
@@ -416,8 +713,7 @@ public class RIOHandler {
                 throw new IOException("Output file does not exists: " + resultFile.getAbsolutePath());
             }
 
-            String rType = currentAnnotation.getStringValue(RAttribute.TYPE);
-            mimeType = dataTypeRegistry.getType(rType).getMimeType();
+            mimeType = script.getMimeType(RAnnotationType.OUTPUT, result_id);
 
             if(iClass.equals(GenericFileDataBinding.class)){
                 GenericFileData out = new GenericFileData(outputFile, mimeType);
@@ -432,7 +728,7 @@ public class RIOHandler {
             }
         }
         else if (iClass.equals(GTVectorDataBinding.class)) {
-            RTypeDefinition dataType = currentAnnotation.getRDataType();
+            RTypeDefinition dataType = script.getDataType(RAnnotationType.OUTPUT, result_id);
             File outputFile;
 
             if (dataType.equals(RDataType.SHAPE) || dataType.equals(RDataType.SHAPE_ZIP2)) {
@@ -504,8 +800,7 @@ public class RIOHandler {
                 throw new NoApplicableCodeException();
             }
 
-            String rType = currentAnnotation.getStringValue(RAttribute.TYPE);
-            String mimeType = dataTypeRegistry.getType(rType).getMimeType();
+            String mimeType = script.getMimeType(RAnnotationType.OUTPUT, result_id);
 
             GenericFileDataWithGT gfd = new GenericFileDataWithGT(outputFile, mimeType);
             GTVectorDataBinding gtvec;
@@ -519,8 +814,7 @@ public class RIOHandler {
         else if (iClass.equals(GTRasterDataBinding.class)) {
             File tempfile = streamFromRserveToWPS(connection, filename, wpsWorkDir);
 
-            String rType = currentAnnotation.getStringValue(RAttribute.TYPE);
-            String mimeType = dataTypeRegistry.getType(rType).getMimeType();
+            String mimeType = script.getMimeType(RAnnotationType.OUTPUT, result_id);
 
             GeotiffParser tiffPar = new GeotiffParser();
             FileInputStream fis = new FileInputStream(tempfile);
@@ -594,20 +888,124 @@ public class RIOHandler {
         tempfile = new File(destination, tempfile.getName());
 
         // Do streaming Rserve --> WPS tempfile
-        RFileInputStream fis = connection.openFile(filename);
-        FileOutputStream fos = new FileOutputStream(tempfile);
-        byte[] buffer = new byte[2048];
-        int stop = fis.read(buffer);
-        while (stop != -1) {
-            fos.write(buffer, 0, stop);
-            stop = fis.read(buffer);
-        }
-        fis.close();
-        fos.close();
+        this.transfer.download(connection, filename, tempfile, this.transfer.isCompressed(connection, null, filename));
         // tempfile.deleteOnExit();
         return tempfile;
     }
 
+    /**
+     * Makes an input file and its sidecar files with the same base name (e.g. of a shapefile) available in
+     * the R working directory under a random base name without copying them: as hard links, or as symbolic
+     * links if the directories are on different file systems. The files are only copied if they cannot be
+     * linked at all. This replaces the upload and <code>unzipRename</code> for Rserve instances that can read
+     * the files of the WPS.
+     *
+     * @return the name of the linked file in the R working directory, or <code>null</code> if the file cannot
+     *         be staged and must be streamed
+     */
+    private String linkToWorkspace(File baseFile, String ext, File workDirectory) {
+        if (baseFile == null || !baseFile.isFile()) {
+            return null;
+        }
+
+        String randomname = UUID.randomUUID().toString();
+        File[] files = getFilesWithBaseName(baseFile);
+
+        List<Path> links = new ArrayList<>();
+        try {
+            for (File file : files) {
+                String suffix = file.equals(baseFile.getAbsoluteFile()) ? ext : getExtension(file.getName());
+                Path link = workDirectory.toPath().resolve(randomname + "." + suffix);
+                stageFile(link, file.toPath().toAbsolutePath());
+                links.add(link);
+            }
+            log.debug("Linked input file {} and {} sidecar files into {} as {}",
+                      baseFile,
+                      links.size() - 1,
+                      workDirectory,
+                      randomname);
+            return randomname + "." + ext;
+        }
+        catch (IOException | SecurityException e) {
+            log.debug("Could not link {} into {}, streaming it instead: {}", baseFile, workDirectory, e.getMessage());
+            for (Path link : links) {
+                try {
+                    Files.deleteIfExists(link);
+                }
+                catch (IOException ex) {
+                    log.warn("Could not remove link {}", link, ex);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Links a file into the workspace, or copies it if neither a hard nor a symbolic link can be created. A
+     * link shares the file of the WPS, which is made read-only so that a script cannot change it in place.
+     */
+    private static void stageFile(Path link, Path target) throws IOException {
+        try {
+            Files.createLink(link, target);
+            makeReadOnly(target);
+            return;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            log.trace("Could not create hard link to {}: {}", target, e.getMessage());
+        }
+        try {
+            Files.createSymbolicLink(link, target);
+            makeReadOnly(target);
+            return;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            log.trace("Could not create symbolic link to {}: {}", target, e.getMessage());
+        }
+        Files.copy(target, link);
+    }
+
+    private static void makeReadOnly(Path file) {
+        if ( !file.toFile().setWritable(false, false)) {
+            log.debug("Could not make linked input {} read-only", file);
+        }
+    }
+
+    /**
+     * Uploads an input file and its sidecar files with the same base name (e.g. of a shapefile) one by one
+     * into the R working directory under a random base name, so they do not have to be zipped and extracted
+     * with <code>unzipRename</code>.
+     *
+     * @return the name of the uploaded file in the R working directory
+     */
+    private String streamToWorkspace(RConnection connection, File baseFile, String ext) throws IOException {
+        String randomname = UUID.randomUUID().toString();
+        File[] files = getFilesWithBaseName(baseFile);
+
+        for (File file : files) {
+            String suffix = file.equals(baseFile.getAbsoluteFile()) ? ext : getExtension(file.getName());
+            String fileName = randomname + "." + suffix;
+            upload(connection, file, fileName, this.transfer.isCompressed(connection, null, fileName));
+        }
+        log.debug("Uploaded input file {} and {} sidecar files as {}", baseFile, files.length - 1, randomname);
+        return randomname + "." + ext;
+    }
+
+    private static File[] getFilesWithBaseName(File baseFile) {
+        String baseName = getBaseName(baseFile.getName());
+        return baseFile.getAbsoluteFile().getParentFile().listFiles(f -> f.isFile()
+                && getBaseName(f.getName()).equals(baseName));
+    }
+
+    private static String getBaseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    private static String getExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1);
+    }
+
     /**
      * Streams a file from WPS to Rserve workdirectory
      *
@@ -617,12 +1015,14 @@ public class RIOHandler {
      *        inputstream of the inputfile
      * @param ext
      *        basefile extension
+     * @param mimeType
+     *        decides if the file is compressed for the transfer
      * @return
      * @throws IOException
      * @throws REXPMismatchException
      * @throws RserveException
      */
-    private String streamFromWPSToRserve(RConnection connection, InputStream is, String ext) throws IOException,
+    private String streamFromWPSToRserve(RConnection connection, InputStream is, String ext, String mimeType) throws IOException,
             REXPMismatchException,
             RserveException {
         String result;
@@ -637,25 +1037,54 @@ public class RIOHandler {
         // LiteralLongBinding.class,
         // LiteralShortBinding.class);
 
-        RFileOutputStream rfos = connection.createFile(inputFileName);
-
-        byte[] buffer = new byte[2048];
-        int stop = is.read(buffer);
-
-        while (stop != -1) {
-            rfos.write(buffer, 0, stop);
-            stop = is.read(buffer);
-        }
-        rfos.flush();
-        rfos.close();
-        is.close();
+        boolean compress = this.transfer.isCompressed(connection, mimeType, inputFileName + "." + ext);
+        upload(connection, is, inputFileName, compress);
         // R unzips archive files and renames files with unique
         // random names
         // TODO: check whether input is a zip archive or not
         result = connection.eval("unzipRename(" + "\"" + inputFileName + "\", " + "\"" + randomname + "\", " + "\""
                 + ext + "\")").asString();
-        result = "\"" + result + "\"";
         return result;
     }
 
+    /**
+     * Streams a local file from WPS to Rserve workdirectory, see
+     * {@link #streamFromWPSToRserve(RConnection, InputStream, String, String)}
+     */
+    private String streamFromWPSToRserve(RConnection connection, File file, String ext, String mimeType) throws IOException,
+            REXPMismatchException,
+            RserveException {
+        String randomname = UUID.randomUUID().toString();
+        boolean compress = this.transfer.isCompressed(connection, mimeType, randomname + "." + ext);
+        upload(connection, file, randomname, compress);
+        return connection.eval("unzipRename(\"" + randomname + "\", \"" + randomname + "\", \"" + ext + "\")")
+                .asString();
+    }
+
+    /**
+     * uploads the stream to the R working directory, or copies it there from the input cache if the content
+     * was uploaded before, and closes the stream
+     */
+    private void upload(RConnection connection, InputStream is, String fileName, boolean compress) throws IOException {
+        if (this.inputCache != null) {
+            this.inputCache.stage(is, connection, fileName, compress);
+        }
+        else {
+            this.transfer.upload(is, connection, fileName, compress);
+        }
+    }
+
+    /**
+     * uploads the local file to the R working directory, or copies it there from the input cache if the
+     * content was uploaded before, hashing the file directly instead of spooling it
+     */
+    private void upload(RConnection connection, File file, String fileName, boolean compress) throws IOException {
+        if (this.inputCache != null) {
+            this.inputCache.stage(file, connection, fileName, compress);
+        }
+        else {
+            this.transfer.upload(new FileInputStream(file), connection, fileName, compress);
+        }
+    }
+
 }
@@ -38,6 +38,7 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.n52.javaps.io.Data;
 import org.n52.javaps.io.GenericFileData;
@@ -69,6 +70,11 @@ public class RSessionManager {
 
     private static final String WARNING_OUTPUT_NAME = "warnings";
 
+    /**
+     * name of the attached environment that holds the contents of a prepared session
+     */
+    public static final String PREPARED_SESSION_ENVIRONMENT = "wps4r:session";
+
     private final R_Config config;
 
     private final RConnection connection;
@@ -111,10 +117,78 @@ public class RSessionManager {
             RAnnotationException {
         log.debug("Configuring R session...");
 
+        if (config.isWarmSessions()) {
+            // cleaned when the connection was returned to the pool, utilities and packages are already loaded
+            createWarningStorage();
+            return;
+        }
+
         if (cleanOnStartup) {
             cleanSession();
         }
 
+        setMemoryLimit();
+
+//        loadWPSSessionVariables(processWKN);//TODO
+//        loadUtilityScripts(executor);
+    }
+
+    /**
+     * Loads everything that does not depend on a specific process into the session and then moves it from the
+     * global environment into an attached environment, so that it survives cleaning the session between two
+     * executions.
+     */
+    public void prepareSession(RExecutor executor) throws RserveException {
+        log.debug("Preparing R session...");
+
+        cleanSession();
+        setMemoryLimit();
+
+        try {
+            loadPackages();
+            loadUtilityScripts(executor);
+            loadServerSessionVariables();
+        }
+        catch (IOException | RAnnotationException | OwsExceptionReport e) {
+            log.error("Could not prepare session", e);
+            throw new RserveException(this.connection, "Could not prepare session: " + e.getMessage());
+        }
+
+        StringBuilder cmd = new StringBuilder();
+        cmd.append("local({ e <- attach(NULL, name = \"");
+        cmd.append(PREPARED_SESSION_ENVIRONMENT);
+        cmd.append("\"); for (n in ls(.GlobalEnv, all.names = TRUE)) assign(n, get(n, envir = .GlobalEnv), envir = e); ");
+        cmd.append("rm(list = ls(.GlobalEnv, all.names = TRUE), envir = .GlobalEnv) })");
+        this.connection.voidEval(cmd.toString());
+
+        RLogger.log(connection, "Prepared session, search path:");
+        RLogger.logVariable(connection, "search()");
+    }
+
+    private void loadPackages() {
+        Collection<String> packages = config.getSessionPackages();
+        log.debug("Attaching {} packages: {}", packages.size(), packages);
+
+        for (String pkg : packages) {
+            try {
+                REXP loaded = this.connection.eval("suppressPackageStartupMessages(require(\"" + pkg
+                        + "\", character.only = TRUE))");
+                if (loaded.asInteger() != 1) {
+                    log.warn("Could not attach package '{}' to prepared session.", pkg);
+                }
+            }
+            catch (RserveException | REXPMismatchException e) {
+                log.warn("Could not attach package '{}' to prepared session.", pkg, e);
+            }
+        }
+    }
+
+    private void createWarningStorage() throws RserveException {
+        String cmd = RWPSSessionVariables.WARNING_OUTPUT_STORAGE + " = c()";
+        connection.eval(cmd);
+    }
+
+    private void setMemoryLimit() {
         // configure memory limit
         StringBuilder cmd = new StringBuilder();
 
@@ -134,9 +208,6 @@ public class RSessionManager {
         catch (REXPMismatchException e) {
             log.error("Problem setting the memory limit", e);
         }
-
-//        loadWPSSessionVariables(processWKN);//TODO
-//        loadUtilityScripts(executor);
     }
 
     private String getConsoleOutput(String cmd) throws RserveException, REXPMismatchException {
@@ -179,13 +250,7 @@ public class RSessionManager {
             RLogger.log(connection, "Environment:");
             connection.eval("cat(capture.output(environment()), \"\n\")");
 
-            String cmd = RWPSSessionVariables.WPS_SERVER + " <- TRUE";
-            connection.eval(cmd);
-            RLogger.logVariable(connection, RWPSSessionVariables.WPS_SERVER);
-
-            cmd = RWPSSessionVariables.WPS_SERVER_NAME + " <- \"52N-WPS\"";
-            connection.eval(cmd);
-            RLogger.logVariable(connection, RWPSSessionVariables.WPS_SERVER_NAME);
+            loadServerSessionVariables();
 
             String resourceUrl = urlGenerator.getResourceURL(new R_Resource(processWKN, "", true)).toExternalForm();
             assignAndLog(RWPSSessionVariables.RESOURCES_ENDPOINT, resourceUrl);
@@ -204,8 +269,7 @@ public class RSessionManager {
             assignAndLog(RWPSSessionVariables.PROCESS_DESCRIPTION, processDescription.toString());
 
             // create session variable for warning storage
-            cmd = RWPSSessionVariables.WARNING_OUTPUT_STORAGE + " = c()";
-            connection.eval(cmd);
+            createWarningStorage();
             RLogger.logVariable(connection, RWPSSessionVariables.WARNING_OUTPUT_STORAGE);
 
             RLogger.log(connection, "workspace content after loading session variables:");
@@ -220,6 +284,16 @@ public class RSessionManager {
         }
     }
 
+    private void loadServerSessionVariables() throws RserveException {
+        String cmd = RWPSSessionVariables.WPS_SERVER + " <- TRUE";
+        connection.eval(cmd);
+        RLogger.logVariable(connection, RWPSSessionVariables.WPS_SERVER);
+
+        cmd = RWPSSessionVariables.WPS_SERVER_NAME + " <- \"52N-WPS\"";
+        connection.eval(cmd);
+        RLogger.logVariable(connection, RWPSSessionVariables.WPS_SERVER_NAME);
+    }
+
     private void assignAndLog(String name, String value) throws RserveException {
         connection.assign(name, value);
         RLogger.logVariable(connection, name);
@@ -257,19 +331,7 @@ public class RSessionManager {
 
     public HashMap<String, Data<?>> saveInfos(HashMap<String, Data<?>> result) {
         try {
-            String sessionInfo = getSessionInfo();
-            InputStream sessionInfoStream = new ByteArrayInputStream(sessionInfo.getBytes("UTF-8"));
-            result.put(SESSION_INFO_OUTPUT_NAME,
-                       new GenericFileDataBinding(new GenericFileData(sessionInfoStream,
-                                                                      GenericFileDataConstants.MIME_TYPE_PLAIN_TEXT)));
-            sessionInfoStream.close();
-
-            String warnings = getWarnings();
-            InputStream warningsStream = new ByteArrayInputStream(warnings.getBytes("UTF-8"));
-            result.put(WARNING_OUTPUT_NAME,
-                       new GenericFileDataBinding(new GenericFileData(warningsStream,
-                                                                      GenericFileDataConstants.MIME_TYPE_PLAIN_TEXT)));
-            warningsStream.close();
+            putInfos(result, getSessionInfo(), getWarnings());
         }
         catch (IOException | REXPMismatchException | RserveException e) {
             log.error("Could not save session info and warnings.", e);
@@ -278,6 +340,36 @@ public class RSessionManager {
         return result;
     }
 
+    /**
+     * A cached result was created by an earlier session, so the session info and warnings outputs only state
+     * that no R session ran for this execution.
+     */
+    public static Map<String, Data<?>> saveCachedInfos(Map<String, Data<?>> result, String cacheKey) {
+        String message = "The result was taken from the result cache (key " + cacheKey
+                + "), no R session was run for this execution.\n";
+        try {
+            putInfos(result, message, message);
+        }
+        catch (IOException e) {
+            log.error("Could not save session info and warnings.", e);
+        }
+        return result;
+    }
+
+    private static void putInfos(Map<String, Data<?>> result, String sessionInfo, String warnings) throws IOException {
+        InputStream sessionInfoStream = new ByteArrayInputStream(sessionInfo.getBytes("UTF-8"));
+        result.put(SESSION_INFO_OUTPUT_NAME,
+                   new GenericFileDataBinding(new GenericFileData(sessionInfoStream,
+                                                                  GenericFileDataConstants.MIME_TYPE_PLAIN_TEXT)));
+        sessionInfoStream.close();
+
+        InputStream warningsStream = new ByteArrayInputStream(warnings.getBytes("UTF-8"));
+        result.put(WARNING_OUTPUT_NAME,
+                   new GenericFileDataBinding(new GenericFileData(warningsStream,
+                                                                  GenericFileDataConstants.MIME_TYPE_PLAIN_TEXT)));
+        warningsStream.close();
+    }
+
     public void loadImportedScripts(RExecutor executor, Collection<File> imports) throws RserveException,
             IOException,
             RAnnotationException,
@@ -42,11 +42,11 @@ import java.util.UUID;
 import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
 import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
 import org.n52.wps.server.r.FilteredRConnection;
+import org.n52.wps.server.r.util.RFileTransfer;
 import org.n52.wps.server.r.util.RLogger;
 import org.rosuda.REngine.REXP;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.Rserve.RConnection;
-import org.rosuda.REngine.Rserve.RFileOutputStream;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -101,8 +101,15 @@ public class RWorkspace {
 
     private Path basedir;
 
+    private final RFileTransfer transfer;
+
     public RWorkspace(Path basedir) {
+        this(basedir, new RFileTransfer());
+    }
+
+    public RWorkspace(Path basedir, RFileTransfer transfer) {
         this.basedir = basedir;
+        this.transfer = transfer;
     }
 
     private REXP createAndSetNewWorkspaceDirectory(File directory, RConnection connection) throws RserveException {
@@ -477,22 +484,12 @@ public class RWorkspace {
      */
     public void copyFile(File source, String name, FilteredRConnection connection) throws IOException {
         // use RFileOutputStream so that remote RServe is supported
-        RFileOutputStream rfos = connection.createFile(name);
-
-        byte[] buffer = new byte[2048];
-        FileInputStream is = new FileInputStream(source);
-        int stop = is.read(buffer);
-
-        while (stop != -1) {
-            rfos.write(buffer, 0, stop);
-            stop = is.read(buffer);
-        }
-
-        rfos.flush();
-        rfos.close();
-        is.close();
+        long bytes = this.transfer.upload(new FileInputStream(source),
+                                          connection,
+                                          name,
+                                          this.transfer.isCompressed(connection, null, source.getName()));
 
-        log.debug("File copied with R from {} as '{}' to {}", source, name, rfos);
+        log.debug("File copied with R from {} as '{}' ({} bytes)", source, name, bytes);
     }
 
 }
@@ -36,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -52,6 +53,7 @@ import org.n52.wps.server.r.RWPSSessionVariables;
 import org.n52.wps.server.r.R_Config;
 import org.n52.wps.server.r.ResourceFileRepository;
 import org.n52.wps.server.r.data.R_Resource;
+import org.n52.wps.server.r.metadata.RParsedScript;
 import org.n52.wps.server.r.syntax.RAnnotation;
 import org.n52.wps.server.r.syntax.RAnnotationException;
 import org.n52.wps.server.r.syntax.RAnnotationType;
@@ -59,8 +61,10 @@ import org.n52.wps.server.r.syntax.RAttribute;
 import org.n52.wps.server.r.util.RExecutor;
 import org.n52.wps.server.r.util.RLogger;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPGenericVector;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.REngine;
+import org.rosuda.REngine.RList;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +82,8 @@ public class RWorkspaceManager {
 
     private FilteredRConnection connection;
 
+    private volatile String rWorkDirectory;
+
     /**
      * Indicates if the WPS working directory should be deleted after process execution
      */
@@ -97,7 +103,7 @@ public class RWorkspaceManager {
                              R_Config config) {
         this.connection = connection;
         this.resourceRepo = resourceRepo;
-        this.workspace = new RWorkspace(config.getBaseDir());
+        this.workspace = new RWorkspace(config.getBaseDir(), config.getFileTransfer());
         this.executor = new RExecutor();
         this.iohandler = iohandler;
         this.config = config;
@@ -129,6 +135,14 @@ public class RWorkspaceManager {
         }
     }
 
+    /**
+     * @return the working directory of the R session for this execution, or <code>null</code> if it is not
+     *         prepared yet
+     */
+    public String getRWorkDirectory() {
+        return rWorkDirectory;
+    }
+
     public void cleanUpWithWPS() {
         log.debug("Cleaning up workspace from Java ...");
 
@@ -183,9 +197,10 @@ public class RWorkspaceManager {
         return success;
     }
 
-    public void loadInputValues(ProcessInputs inputData, List<RAnnotation> inAnnotations) throws RAnnotationException,
+    public void loadInputValues(ProcessInputs inputData, RParsedScript script) throws RAnnotationException,
             OwsExceptionReport {
         log.debug("Loading input values...");
+        List<RAnnotation> inAnnotations = script.getAnnotations(RAnnotationType.INPUT);
 
         // Searching for missing inputs to apply standard values:
         log.debug("in annonations: " + Arrays.toString(inAnnotations.toArray()));
@@ -193,20 +208,33 @@ public class RWorkspaceManager {
         // -------------------------------
         // Input value initialization:
         // -------------------------------
-        HashMap<String, String> inputValues = new HashMap<String, String>();
-        ArrayList<String> inputValuesWithValues = new ArrayList<String>();
+        // all inputs are assigned as R objects in one call
+        List<String> names = new ArrayList<String>();
+        List<REXP> values = new ArrayList<REXP>();
+        Set<String> inputValuesWithValues = new HashSet<String>();
+
+        // file inputs can be linked into the workspace instead of uploaded if R reads the same file system
+        File sharedWorkDirectory = null;
+        if (this.rWorkDirectory != null && this.config.isSharedFilesystem(this.connection.getServerHost())) {
+            File workDirectory = new File(this.rWorkDirectory);
+            if (workDirectory.isDirectory()) {
+                sharedWorkDirectory = workDirectory;
+            }
+        }
+        log.debug("Shared work directory for inputs: {}", sharedWorkDirectory);
 
         for (Entry<OwsCode, List<Data<?>>> entry : inputData.entrySet()) {
-            // parses input values to R-compatible literals and streams input files to workspace
+            // converts input values to R objects and streams input files to workspace
             try {
-                String entryRValue = this.iohandler.parseInput(entry.getValue(), connection);
-                log.debug("Parsed input for '{}' to '{}' based on value '{}'",
-                          entry.getKey(),
-                          entryRValue,
-                          entry.getValue());
-                inputValues.put(entry.getKey().getValue(), entryRValue);
-
-                inputValuesWithValues.add(entry.getKey().getValue());
+                String id = entry.getKey().getValue();
+                REXP value = this.iohandler.parseInputToREXP(entry.getValue(),
+                                                             script.getDataType(RAnnotationType.INPUT, id),
+                                                             connection,
+                                                             sharedWorkDirectory);
+                log.debug("Parsed input for '{}' to {} based on value '{}'", id, value, entry.getValue());
+                names.add(id);
+                values.add(value);
+                inputValuesWithValues.add(id);
             }
             catch (RserveException | REXPMismatchException | IOException e) {
                 log.error("Error parsing input value {}", entry, e);
@@ -218,36 +246,30 @@ public class RWorkspaceManager {
         }
         log.debug("Input: {}", Arrays.toString(inAnnotations.toArray()));
 
-        // parses default values to R-compatible literals if no value has been set
+        // uses default values if no value has been set
         for (RAnnotation rAnnotation : inAnnotations) {
             String id = rAnnotation.getStringValue(RAttribute.IDENTIFIER);
             if ( !inputValuesWithValues.contains(id)) {
-                String value = rAnnotation.getStringValue(RAttribute.DEFAULT_VALUE);
-                Class< ? extends Data<?>> iClass = this.iohandler.getInputDataType(id, inAnnotations);
-                String inputValue = this.iohandler.parseLiteralInput(iClass, value);
-                log.debug("Loaded default input value '{}' for '{}'", inputValue, rAnnotation);
-                inputValues.put(id, inputValue);
+                REXP value = this.iohandler.parseDefaultValueToREXP(rAnnotation);
+                log.debug("Loaded default input value {} for '{}'", value, rAnnotation);
+                names.add(id);
+                values.add(value);
             }
         }
-        log.debug("Assigns (including defaults): {}", Arrays.toString(inputValues.entrySet().toArray()));
+        log.debug("Assigns (including defaults): {}", names);
 
         // assign values to the (clean) workspace:
         log.debug("Assigning values...");
-        Set<Entry<String, String>> inputValues2 = inputValues.entrySet();
-
-        for (Entry<String, String> entry : inputValues2) {
-            // use eval, not assign (assign only parses strings)
-            String statement = entry.getKey() + " <- " + entry.getValue();
-            log.debug("Running statement '{}'", statement);
-
+        if ( !names.isEmpty()) {
             try {
-                connection.filteredEval(statement);
+                REXP list = new REXPGenericVector(new RList(values.toArray(new REXP[values.size()]),
+                                                            names.toArray(new String[names.size()])));
+                connection.assign(RWPSSessionVariables.INPUT_VALUES, list);
+                connection.voidEval("list2env(" + RWPSSessionVariables.INPUT_VALUES + ", envir = .GlobalEnv); rm("
+                        + RWPSSessionVariables.INPUT_VALUES + ")");
             }
             catch (RserveException e) {
-                log.error("Error executing statement '{}'", statement, e);
-//                throw new ExceptionReport("Error executing statement: " + statement + ": " + e.getMessage(),
-//                                          ExceptionReport.INVALID_PARAMETER_VALUE,
-//                                          e);
+                log.error("Error assigning input values {}", names, e);
                 throw new InvalidParameterException();
             }
         }
@@ -367,7 +389,7 @@ public class RWorkspaceManager {
 
         // Set R working directory according to configuration
         String strategy = config.getWdStrategy();
-        boolean isRserveOnLocalhost = this.config.getRServeHost().equalsIgnoreCase("localhost");
+        boolean isRserveOnLocalhost = "localhost".equalsIgnoreCase(this.connection.getServerHost());
         String workDirNameSetting = null;
 
         try {
@@ -384,6 +406,7 @@ public class RWorkspaceManager {
                                            strategy,
                                            isRserveOnLocalhost,
                                            workDirNameSetting);
+        this.rWorkDirectory = connection.eval("getwd()").asString();
 
         return originalWD;
     }
@@ -408,11 +431,11 @@ public class RWorkspaceManager {
      * @return the result has including sessionInfo() and warnings()
      * @throws RAnnotationException
      */
-    public HashMap<String, Data<?>> saveOutputValues(Collection<RAnnotation> outAnnotations) throws RAnnotationException,
+    public HashMap<String, Data<?>> saveOutputValues(RParsedScript script) throws RAnnotationException,
             OwsExceptionReport {
         HashMap<String, Data<?>> result = new HashMap<String, Data<?>>();
 
-        for (RAnnotation rAnnotation : outAnnotations) {
+        for (RAnnotation rAnnotation : script.getAnnotations(RAnnotationType.OUTPUT)) {
             String resultId = rAnnotation.getStringValue(RAttribute.IDENTIFIER);
             REXP evalResult;
             try {
@@ -434,7 +457,7 @@ public class RWorkspaceManager {
                 Data<?> output = this.iohandler.parseOutput(connection,
                                                           resultId,
                                                           evalResult,
-                                                          outAnnotations,
+                                                          script,
                                                           this.workspace);
                 result.put(resultId, output);
 
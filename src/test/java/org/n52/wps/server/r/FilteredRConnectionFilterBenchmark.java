@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.n52.shetland.ogc.ows.exception.NoApplicableCodeException;
+import org.n52.shetland.ogc.ows.exception.OwsExceptionReport;
+import org.n52.wps.server.r.FilteredRConnection.RCommandFilter;
+
+/**
+ * Measures the cost per command of the filters of {@link FilteredRConnection} against the former filters. The
+ * former replacing filter called <code>String.replaceAll</code> once per replaced sequence, the current one
+ * replaces in a single pass; both produce the same commands, which is checked before measuring. The blacklist
+ * is compared with its former <code>HashSet</code> version, a single scan with a compiled pattern was several
+ * times slower than the <code>contains</code> calls.
+ *
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.n52.wps.server.r.FilteredRConnectionFilterBenchmark</code>, optional arguments are the
+ * command lengths in characters.
+ */
+public class FilteredRConnectionFilterBenchmark {
+
+    private static final int[] DEFAULT_LENGTHS = {100, 10000, 1000000};
+
+    /** a literal input as it is assigned in a command, with some of the replaced sequences */
+    private static final String INPUT_PART = "c(1.5, 'quantile', \"some text\", 42) ";
+
+    /** an input without illegal commands, so that the blacklist scans it completely */
+    private static final String CLEAN_PART = "c(1.5, 'median', \"some text\", 42) ";
+
+    private static final long MEASURE_MILLIS = 2000l;
+
+    /** the replacing filter before it was compiled into one pass */
+    private static class ReplaceAllFilter implements RCommandFilter {
+
+        private final Map<String, String> replacements = new HashMap<String, String>();
+
+        public ReplaceAllFilter() {
+            replacements.put("eval", "e_eval");
+            replacements.put("quit", "q_quit");
+            replacements.put("q", "q_q");
+            replacements.put("system", "s_system");
+            replacements.put("setwd", "s_setwd");
+            replacements.put("unlink", "u_unlink");
+            replacements.put("'", "\"");
+            replacements.put("\"", "\\\"");
+        }
+
+        @Override
+        public String filter(String command) {
+            String cmd = command;
+            for (Entry<String, String> r : this.replacements.entrySet()) {
+                cmd = cmd.replaceAll(r.getKey(), r.getValue());
+            }
+            return cmd;
+        }
+
+    }
+
+    /** the blacklist before it was compiled into one pattern */
+    private static class ContainsFilter implements RCommandFilter {
+
+        private final Set<String> illegalCommands = new HashSet<String>();
+
+        public ContainsFilter() {
+            illegalCommands.add("eval");
+            illegalCommands.add("system");
+            illegalCommands.add("unlink");
+            illegalCommands.add("setwd");
+            illegalCommands.add("quit");
+            illegalCommands.add("q(");
+        }
+
+        @Override
+        public String filter(String command) throws OwsExceptionReport {
+            for (String illegal : this.illegalCommands) {
+                if (command.contains(illegal)) {
+                    throw new NoApplicableCodeException();
+                }
+            }
+            return command;
+        }
+
+    }
+
+    public static void main(String[] args) throws OwsExceptionReport {
+        int[] lengths = DEFAULT_LENGTHS;
+        if (args.length > 0) {
+            lengths = IntStream.range(0, args.length).map(i -> Integer.parseInt(args[i])).toArray();
+        }
+
+        System.out.println("filter\tlength [chars]\tformer [us/command]\tcurrent [us/command]");
+        for (int length : lengths) {
+            String input = repeat(INPUT_PART, length);
+            RCommandFilter former = new ReplaceAllFilter();
+            RCommandFilter current = new FilteredRConnection.SilentReplacingFilter();
+            if ( !former.filter(input).equals(current.filter(input))) {
+                throw new IllegalStateException("Filters produce different commands for length " + length);
+            }
+            print("replace", length, measure(former, input), measure(current, input));
+
+            String clean = repeat(CLEAN_PART, length);
+            print("blacklist",
+                  length,
+                  measure(new ContainsFilter(), clean),
+                  measure(new FilteredRConnection.BlacklistFilter(), clean));
+        }
+    }
+
+    private static String repeat(String part, int length) {
+        StringBuilder sb = new StringBuilder(length + part.length());
+        while (sb.length() < length) {
+            sb.append(part);
+        }
+        return sb.substring(0, length);
+    }
+
+    /**
+     * runs the filter repeatedly, first to warm up and then for the measurement
+     *
+     * @return the mean time per command in microseconds
+     */
+    private static double measure(RCommandFilter filter, String input) throws OwsExceptionReport {
+        run(filter, input, MEASURE_MILLIS / 2);
+        long start = System.nanoTime();
+        long runs = run(filter, input, MEASURE_MILLIS);
+        return (System.nanoTime() - start) / 1000d / runs;
+    }
+
+    private static long run(RCommandFilter filter, String input, long millis) throws OwsExceptionReport {
+        long end = System.currentTimeMillis() + millis;
+        long runs = 0;
+        int length = 0;
+        while (runs == 0 || System.currentTimeMillis() < end) {
+            length += filter.filter(input).length();
+            runs++;
+        }
+        if (length == 0) {
+            System.out.println("empty result");
+        }
+        return runs;
+    }
+
+    private static void print(String filter, int length, double former, double current) {
+        System.out.println(String.format("%s\t%d\t%.1f\t%.1f", filter, length, former, current));
+    }
+
+}
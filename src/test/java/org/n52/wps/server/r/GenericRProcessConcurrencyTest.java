@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.n52.shetland.ogc.wps.JobId;
+import org.n52.wps.server.r.GenericRProcess.RunningExecution;
+
+/**
+ * Runs several executions of one cached process instance at the same time and checks that each job only sees its
+ * own status and termination state. No Rserve is needed, the R side of an execution is replaced by writing to the
+ * status file and by a configuration that does not terminate a real R process.
+ */
+public class GenericRProcessConcurrencyTest {
+
+    private static final int JOBS = 8;
+
+    private static final int UPDATES = 3;
+
+    /** the update listener polls the status file once a second */
+    private static final long STATUS_TIMEOUT = 10000l;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GenericRProcess process;
+
+    private ExecutorService threads;
+
+    @Before
+    public void createProcess() {
+        R_Config config = new R_Config() {
+            @Override
+            public boolean terminateRConnection(FilteredRConnection connection, String rWorkDirectory) {
+                return true;
+            }
+        };
+        this.process = new GenericRProcess("org.n52.wps.server.r.test.concurrency",
+                                           config,
+                                           null,
+                                           null,
+                                           null,
+                                           null,
+                                           null,
+                                           null);
+        this.threads = Executors.newFixedThreadPool(JOBS);
+    }
+
+    @After
+    public void shutdown() {
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    public void statusIsKeptPerJob() throws Exception {
+        final CountDownLatch started = new CountDownLatch(JOBS);
+        List<Future<String>> jobs = new ArrayList<>();
+        for (int i = 0; i < JOBS; i++) {
+            final int job = i;
+            jobs.add(this.threads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    JobId jobId = new JobId("status-" + job);
+                    File statusFile = folder.newFile("status-" + job);
+                    RunningExecution execution = process.startExecution(jobId, null);
+                    try {
+                        process.startUpdateListener(statusFile, execution, jobId);
+                        started.countDown();
+                        started.await();
+
+                        long modified = statusFile.lastModified();
+                        for (int update = 1; update <= UPDATES; update++) {
+                            // percentages that no other job reports
+                            String status = Integer.toString(job * 10 + update);
+                            writeStatus(statusFile, status, modified + update * 60000l);
+                            awaitStatus(execution, status);
+                        }
+                        return execution.getStatus();
+                    }
+                    finally {
+                        process.finishExecution(jobId, execution);
+                    }
+                }
+            }));
+        }
+
+        for (int i = 0; i < JOBS; i++) {
+            assertThat(jobs.get(i).get(JOBS * UPDATES * STATUS_TIMEOUT, TimeUnit.MILLISECONDS),
+                       is(Integer.toString(i * 10 + UPDATES)));
+        }
+        for (int i = 0; i < JOBS; i++) {
+            assertThat(this.process.getErrors(new JobId("status-" + i)), is(empty()));
+        }
+    }
+
+    @Test
+    public void cancellingAJobDoesNotTerminateTheOthers() throws Exception {
+        final List<RunningExecution> executions = new ArrayList<>();
+        for (int i = 0; i < JOBS; i++) {
+            executions.add(this.process.startExecution(new JobId("cancel-" + i), null));
+        }
+
+        // every job is cancelled twice at the same time, only the first attempt terminates it
+        final CountDownLatch ready = new CountDownLatch(1);
+        List<Future<Boolean>> cancellations = new ArrayList<>();
+        for (int i = 0; i < JOBS; i += 2) {
+            final JobId jobId = new JobId("cancel-" + i);
+            for (int attempt = 0; attempt < 2; attempt++) {
+                cancellations.add(this.threads.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        ready.await();
+                        return Boolean.valueOf(process.cancel(jobId));
+                    }
+                }));
+            }
+        }
+        ready.countDown();
+
+        int terminated = 0;
+        for (Future<Boolean> cancellation : cancellations) {
+            if (cancellation.get(STATUS_TIMEOUT, TimeUnit.MILLISECONDS).booleanValue()) {
+                terminated++;
+            }
+        }
+        assertThat(terminated, is(JOBS / 2));
+
+        for (int i = 0; i < JOBS; i++) {
+            RunningExecution execution = executions.get(i);
+            if (i % 2 == 0) {
+                assertThat(execution.isTerminated(), is(true));
+                assertThat(execution.getReason(), containsString("was cancelled"));
+            }
+            else {
+                assertThat(execution.isTerminated(), is(false));
+                assertThat(execution.getReason(), is(nullValue()));
+            }
+            this.process.finishExecution(new JobId("cancel-" + i), execution);
+        }
+
+        // the reason is reported as the error of the cancelled job only
+        for (int i = 0; i < JOBS; i++) {
+            List<String> errors = this.process.getErrors(new JobId("cancel-" + i));
+            if (i % 2 == 0) {
+                assertThat(errors, contains(containsString("was cancelled")));
+            }
+            else {
+                assertThat(errors, is(empty()));
+            }
+        }
+
+        assertThat(this.process.cancel(new JobId("cancel-1")), is(false));
+    }
+
+    private static void writeStatus(File statusFile, String status, long modified) throws IOException {
+        Files.write(statusFile.toPath(), status.getBytes(StandardCharsets.UTF_8));
+        // the listener only reads the file again if it was modified after the last read, the time stamps lie in
+        // the future so that they increase even if the listener already read the written file
+        statusFile.setLastModified(modified);
+    }
+
+    private static void awaitStatus(RunningExecution execution, String status) throws InterruptedException {
+        long end = System.currentTimeMillis() + STATUS_TIMEOUT;
+        while ( !status.equals(execution.getStatus()) && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertThat(execution.getStatus(), is(status));
+    }
+
+}
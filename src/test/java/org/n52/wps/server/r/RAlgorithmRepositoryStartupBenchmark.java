@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.n52.wps.server.r.data.RDataTypeRegistry;
+import org.n52.wps.server.r.metadata.RAnnotationParser;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Measures the time until synthetic scripts are parsed and registered by the startup threads of the
+ * {@link RAlgorithmRepository}. Checking Rserve and validating the process descriptions are not part of the
+ * measurement, they need a running Rserve and the javaPS handler repositories. The annotation cache is disabled,
+ * so every run is a cold start.
+ *
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.n52.wps.server.r.RAlgorithmRepositoryStartupBenchmark</code>, optional arguments are the
+ * numbers of scripts.
+ */
+public class RAlgorithmRepositoryStartupBenchmark {
+
+    private static final int[] DEFAULT_SCRIPT_COUNTS = {10, 100, 1000};
+
+    private static final String SCRIPT = "# wps.des: id = benchmark_%1$d, title = Synthetic script %1$d, version = 1,\n"
+            + "#   abstract = Generates random numbers with uniform distribution;\n"
+            + "\n"
+            + "# wps.in: min, double, Minimum, All outcomes are larger than min, value = 0;\n"
+            + "# wps.in: max, double, Maximum, All outcomes are smaller than max, value = 1;\n"
+            + "# wps.in: n, integer, amount of random numbers, value = 100;\n"
+            + "x = runif(n, min=min, max=max)\n"
+            + "\n"
+            + "# wps.out: output, text, Random number list,\n"
+            + "#   Text file with list of n random numbers in one column;\n"
+            + "output = \"random_out\"\n"
+            + "write.table(x, output)\n";
+
+    public static void main(String[] args) throws IOException {
+        int[] scriptCounts = DEFAULT_SCRIPT_COUNTS;
+        if (args.length > 0) {
+            scriptCounts = Stream.of(args).mapToInt(Integer::parseInt).toArray();
+        }
+
+        System.out.println("scripts\tregistered\tthreads\ttime-to-ready [ms]");
+        for (int scriptCount : scriptCounts) {
+            Path directory = Files.createTempDirectory("wps4r-startup-benchmark");
+            try {
+                writeScripts(directory, scriptCount);
+                run(directory, scriptCount);
+            }
+            finally {
+                delete(directory);
+            }
+        }
+    }
+
+    private static void run(Path directory, int scriptCount) {
+        R_Config config = new R_Config();
+        ReflectionTestUtils.setField(config, "scriptDirectory", directory.toAbsolutePath().toString());
+        ReflectionTestUtils.setField(config, "enableAnnotationCache", false);
+
+        RAnnotationParser parser = new RAnnotationParser(new RDataTypeRegistry(), config, null);
+        ScriptFileRepository scriptRepo = new ScriptFileRepository();
+        ReflectionTestUtils.setField(scriptRepo, "annotationParser", parser);
+        scriptRepo.config = config;
+
+        RAlgorithmRepository repository = new RAlgorithmRepository();
+        ReflectionTestUtils.setField(repository, "config", config);
+        ReflectionTestUtils.setField(repository, "scriptRepo", scriptRepo);
+        ReflectionTestUtils.setField(repository, "parser", parser);
+
+        long start = System.nanoTime();
+        Collection<File> scriptFiles = config.getScriptFiles();
+        ExecutorService executor = repository.createStartupExecutor();
+        try {
+            repository.registerScriptFiles(scriptFiles, executor);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println(String.format("%d\t%d\t%d\t%d",
+                                         scriptCount,
+                                         scriptRepo.getRegisteredScriptFiles().size(),
+                                         config.getStartupThreads(),
+                                         elapsed));
+    }
+
+    private static void writeScripts(Path directory, int scriptCount) throws IOException {
+        for (int i = 0; i < scriptCount; i++) {
+            Files.write(directory.resolve("benchmark_" + i + ".R"),
+                        String.format(SCRIPT, i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+}
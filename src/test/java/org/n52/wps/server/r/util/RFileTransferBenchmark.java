@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.SynchronousQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures the throughput of {@link RFileTransfer} across chunk sizes and payload sizes, uncompressed and
+ * gzipped. The payload is read from a pipe that another thread fills. The sink hands every written chunk to
+ * another thread and waits until it was taken, like <code>RFileOutputStream</code> sends one request to
+ * Rserve per write. A chunk size of 2048 bytes is the size of the buffers the transfers used before.
+ *
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.n52.wps.server.r.util.RFileTransferBenchmark</code>.
+ */
+public class RFileTransferBenchmark {
+
+    private static final int[] CHUNK_SIZES = {2048, 8 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    private static final int[] PAYLOAD_SIZES = {1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024};
+
+    private static final int RUNS = 3;
+
+    /** a table of numbers like a typical text input, which compresses moderately */
+    private static final byte[] PAYLOAD_PATTERN = createPattern();
+
+    /**
+     * passes each written chunk to a consumer thread and returns once it was taken, one round trip per write
+     */
+    private static class RoundTripSink extends OutputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final SynchronousQueue<byte[]> chunks = new SynchronousQueue<>();
+
+        private final Thread consumer;
+
+        private volatile long received = 0;
+
+        public RoundTripSink() {
+            this.consumer = new Thread(() -> {
+                try {
+                    byte[] chunk = chunks.take();
+                    while (chunk != END) {
+                        received += chunk.length;
+                        chunk = chunks.take();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "WPS4R-benchmark-sink");
+            this.consumer.setDaemon(true);
+            this.consumer.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            put(chunk);
+        }
+
+        @Override
+        public void close() throws IOException {
+            put(END);
+            try {
+                consumer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            try {
+                chunks.put(chunk);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("payload [MiB]\tchunk [KiB]\tplain [MiB/s]\tgzip [MiB/s]");
+        for (int payloadSize : PAYLOAD_SIZES) {
+            for (int chunkSize : CHUNK_SIZES) {
+                RFileTransfer transfer = new RFileTransfer(chunkSize, RFileTransfer.Compression.NEVER);
+                double plain = measure(transfer, payloadSize, false);
+                double gzip = measure(transfer, payloadSize, true);
+                System.out.println(String.format("%d\t%d\t%.1f\t%.1f",
+                                                 payloadSize / (1024 * 1024),
+                                                 chunkSize / 1024,
+                                                 plain,
+                                                 gzip));
+            }
+        }
+    }
+
+    /**
+     * @return the best throughput of several runs in MiB per second of uncompressed data
+     */
+    private static double measure(RFileTransfer transfer, int payloadSize, boolean compress) throws Exception {
+        double best = 0;
+        for (int run = 0; run < RUNS; run++) {
+            InputStream in = createSource(payloadSize);
+            RoundTripSink sink = new RoundTripSink();
+            long start = System.nanoTime();
+            long bytes;
+            if (compress) {
+                try (GZIPOutputStream out = new GZIPOutputStream(sink, transfer.getChunkSize())) {
+                    bytes = transfer.transfer(in, out, "benchmark");
+                }
+            }
+            else {
+                try (OutputStream out = sink) {
+                    bytes = transfer.transfer(in, out, "benchmark");
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            in.close();
+            if (bytes != payloadSize) {
+                throw new IllegalStateException("Transferred " + bytes + " of " + payloadSize + " bytes");
+            }
+            best = Math.max(best, bytes / (1024d * 1024d) / (nanos / 1e9));
+        }
+        return best;
+    }
+
+    private static InputStream createSource(int payloadSize) throws IOException {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 64 * 1024);
+        Thread producer = new Thread(() -> {
+            try (OutputStream o = out) {
+                int written = 0;
+                while (written < payloadSize) {
+                    int len = Math.min(PAYLOAD_PATTERN.length, payloadSize - written);
+                    o.write(PAYLOAD_PATTERN, 0, len);
+                    written += len;
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "WPS4R-benchmark-source");
+        producer.setDaemon(true);
+        producer.start();
+        return in;
+    }
+
+    private static byte[] createPattern() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 256 * 1024; i++) {
+            sb.append(i).append(',').append(i * 0.37).append(',').append(Math.sin(i)).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
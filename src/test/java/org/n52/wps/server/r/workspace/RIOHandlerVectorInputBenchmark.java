@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2010-2015 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *       • Apache License, version 2.0
+ *       • Apache Software License, version 1.0
+ *       • GNU Lesser General Public License, version 3
+ *       • Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *       • Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public
+ * License version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ */
+package org.n52.wps.server.r.workspace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.n52.javaps.io.Data;
+import org.n52.javaps.io.literal.LiteralData;
+import org.n52.wps.server.r.FilteredRConnection;
+import org.n52.wps.server.r.data.RDataTypeRegistry;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Measures how a multi-valued double input gets into R: as one primitive vector that is assigned, against the
+ * former <code>c(...)</code> literal that was built by string concatenation and evaluated with
+ * <code>filteredEval</code>. The Java side is always measured; the R side only if an Rserve instance is
+ * reachable.
+ *
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.n52.wps.server.r.workspace.RIOHandlerVectorInputBenchmark</code>, optional arguments are
+ * the Rserve host and port, default <code>localhost 6311</code>.
+ */
+public class RIOHandlerVectorInputBenchmark {
+
+    private static final int[] VALUE_COUNTS = {10, 1000, 10000};
+
+    private static final long MEASURE_MILLIS = 2000l;
+
+    private interface Task {
+
+        void run() throws Exception;
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6311;
+
+        RIOHandler handler = new RIOHandler(new RDataTypeRegistry());
+        FilteredRConnection connection = connect(host, port);
+        try {
+            System.out.println("values\tformer Java [us]\tvector Java [us]\tformer R [us]\tvector R [us]");
+            for (int count : VALUE_COUNTS) {
+                List<Data<?>> input = createInput(count);
+
+                double formerJava = measure(() -> createLiteral(handler, input));
+                double vectorJava = measure(() -> handler.parseInputToREXP(input, null));
+                String formerR = "-";
+                String vectorR = "-";
+                if (connection != null) {
+                    formerR = format(measure(() -> connection.filteredEval("x <- " + createLiteral(handler, input))));
+                    vectorR = format(measure(() -> connection.assign("x", handler.parseInputToREXP(input, null))));
+                    checkSameLength(connection, handler, input);
+                }
+                System.out.println(String.format("%d\t%s\t%s\t%s\t%s",
+                                                 count,
+                                                 format(formerJava),
+                                                 format(vectorJava),
+                                                 formerR,
+                                                 vectorR));
+            }
+        }
+        finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static FilteredRConnection connect(String host, int port) {
+        try {
+            return new FilteredRConnection(host, port);
+        }
+        catch (RserveException e) {
+            System.out.println("Rserve is not available at " + host + ":" + port + ", only the Java side is measured: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<Data<?>> createInput(int count) {
+        List<Data<?>> input = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            input.add(new LiteralData(Double.valueOf(i * 0.5)));
+        }
+        return input;
+    }
+
+    /**
+     * the former <code>RIOHandler.parseInput</code> for a vector: a <code>c(...)</code> literal built by
+     * concatenating one parsed value after the other. It passed the class of the data binding, so every value
+     * was quoted as a string.
+     */
+    private static String createLiteral(RIOHandler handler, List<Data<?>> input) throws Exception {
+        String result = "c(";
+        for (int i = 0; i < input.size() - 1; i++) {
+            result += handler.parseLiteralInput(LiteralData.class, input.get(i).getPayload());
+            result += ", ";
+        }
+        result += handler.parseLiteralInput(LiteralData.class, input.get(input.size() - 1).getPayload());
+        result += ")";
+        return result;
+    }
+
+    /**
+     * the former literal became a character vector, so only the lengths are compared
+     */
+    private static void checkSameLength(FilteredRConnection connection, RIOHandler handler, List<Data<?>> input) throws Exception {
+        connection.filteredEval("x <- " + createLiteral(handler, input));
+        connection.assign("y", handler.parseInputToREXP(input, null));
+        REXP same = connection.eval("as.integer(length(x) == length(y))");
+        if (same.asInteger() != 1) {
+            throw new IllegalStateException("The vector and the evaluated literal differ in length for "
+                    + input.size() + " values");
+        }
+    }
+
+    /**
+     * runs the task repeatedly, first to warm up and then for the measurement
+     *
+     * @return the mean time per run in microseconds
+     */
+    private static double measure(Task task) throws Exception {
+        run(task, MEASURE_MILLIS / 2);
+        long start = System.nanoTime();
+        long runs = run(task, MEASURE_MILLIS);
+        return (System.nanoTime() - start) / 1000d / runs;
+    }
+
+    private static long run(Task task, long millis) throws Exception {
+        long end = System.currentTimeMillis() + millis;
+        long runs = 0;
+        while (runs == 0 || System.currentTimeMillis() < end) {
+            task.run();
+            runs++;
+        }
+        return runs;
+    }
+
+    private static String format(double micros) {
+        return String.format("%.1f", micros);
+    }
+
+}